@@ -0,0 +1,68 @@
+package net.wushilin.props;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read counters of one EnvAwareProperties, see startAccessProfiling.
+ * <p>
+ * Each key has its own LongAdder, so threads reading the same hot key update different cells instead of
+ * fighting over one counter. With sampling, the first read of each key is always counted, so keys read only
+ * a few times are not reported as never read. After that only about one read in sampleEvery is counted, and
+ * those counts are scaled back up in the snapshot.
+ */
+final class AccessCounter {
+    private final int sampleEvery;
+    private final long started = System.nanoTime();
+    private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<String, LongAdder>();
+
+    AccessCounter(int sampleEvery) {
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("Sample rate must be at least 1, got " + sampleEvery);
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * Count a read of an existing key
+     * @param key The key
+     */
+    void record(String key) {
+        // the adder of a key doubles as its read at least once flag
+        LongAdder counter = counts.get(key);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counts.putIfAbsent(key, created);
+            if (counter == null) {
+                created.increment();
+                return;
+            }
+        }
+        if (sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return;
+        }
+        counter.increment();
+    }
+
+    /**
+     * Take a snapshot
+     * @param keys The keys defined now
+     * @return The snapshot
+     */
+    AccessProfile snapshot(Set<String> keys) {
+        long elapsed = System.nanoTime() - started;
+        Map<String, Long> reads = new HashMap<String, Long>(counts.size() * 4 / 3 + 1);
+        for (Map.Entry<String, LongAdder> next : counts.entrySet()) {
+            long count = next.getValue().sum();
+            if (count > 0) {
+                // the first read was counted exactly, the rest were sampled
+                reads.put(next.getKey(), 1 + (count - 1) * sampleEvery);
+            }
+        }
+        return new AccessProfile(elapsed, sampleEvery, reads, keys);
+    }
+}
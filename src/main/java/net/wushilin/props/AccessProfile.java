@@ -0,0 +1,157 @@
+package net.wushilin.props;
+
+import java.util.*;
+
+/**
+ * A snapshot of how often each key of an EnvAwareProperties was read, see EnvAwareProperties.accessProfile.
+ * <p>
+ * Counts are taken since profiling started. When profiling samples reads, only the counts are estimates: a key
+ * read n times shows about n. The first read of every key is always counted, so neverRead() is exact.
+ */
+public final class AccessProfile {
+    private final long elapsedNanos;
+    private final int sampleEvery;
+    /**
+     * Estimated reads of each key read at least once
+     */
+    private final Map<String, Long> reads;
+    /**
+     * Keys defined when the snapshot was taken
+     */
+    private final Set<String> keys;
+
+    AccessProfile(long elapsedNanos, int sampleEvery, Map<String, Long> reads, Set<String> keys) {
+        this.elapsedNanos = elapsedNanos;
+        this.sampleEvery = sampleEvery;
+        this.reads = reads;
+        this.keys = keys;
+    }
+
+    /**
+     * Time covered by this snapshot
+     * @return Milliseconds since profiling started
+     */
+    public long getElapsedMillis() {
+        return elapsedNanos / 1_000_000L;
+    }
+
+    /**
+     * How many reads each counted read stands for, 1 when every read is counted
+     * @return The sample rate
+     */
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    /**
+     * Reads of a key
+     * @param key The key
+     * @return The number of reads, 0 if not read
+     */
+    public long getReads(String key) {
+        Long result = reads.get(key);
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Reads of all keys
+     * @return The total number of reads
+     */
+    public long getTotalReads() {
+        long result = 0;
+        for (Long next : reads.values()) {
+            result += next;
+        }
+        return result;
+    }
+
+    /**
+     * The most read keys
+     * @param n How many keys to return
+     * @return Keys and their reads, most read first, keys with the same count sorted by key
+     */
+    public List<Map.Entry<String, Long>> top(int n) {
+        if (n <= 0) {
+            return Collections.emptyList();
+        }
+        // min heap of the best n so far, the weakest entry on top
+        PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<Map.Entry<String, Long>>(
+                Math.min(n, reads.size()) + 1, Collections.reverseOrder(HOTTEST_FIRST));
+        for (Map.Entry<String, Long> next : reads.entrySet()) {
+            if (heap.size() < n) {
+                heap.add(next);
+            } else if (HOTTEST_FIRST.compare(next, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(next);
+            }
+        }
+        List<Map.Entry<String, Long>> result = new ArrayList<Map.Entry<String, Long>>(heap.size());
+        for (Map.Entry<String, Long> next : heap) {
+            result.add(new AbstractMap.SimpleImmutableEntry<String, Long>(next));
+        }
+        result.sort(HOTTEST_FIRST);
+        return result;
+    }
+
+    /**
+     * Keys defined now that were not read since profiling started
+     * @return The keys, sorted
+     */
+    public SortedSet<String> neverRead() {
+        SortedSet<String> result = new TreeSet<String>();
+        for (String next : keys) {
+            if (!reads.containsKey(next)) {
+                result.add(next);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read rates per key prefix, e.g. with segments 1 the reads of "db.url" and "db.user" add up under "db".
+     * Prefixes of keys that were not read are included with a rate of 0.
+     * @param segments How many dot separated segments make a prefix. Shorter keys are their own prefix.
+     * @return Reads per second of each prefix, sorted by prefix
+     */
+    public SortedMap<String, Double> ratesByPrefix(int segments) {
+        if (segments < 1) {
+            throw new IllegalArgumentException("Need at least 1 segment, got " + segments);
+        }
+        SortedMap<String, Double> result = new TreeMap<String, Double>();
+        for (String next : keys) {
+            result.put(prefix(next, segments), 0.0d);
+        }
+        double seconds = Math.max(elapsedNanos, 1L) / 1e9d;
+        for (Map.Entry<String, Long> next : reads.entrySet()) {
+            String prefix = prefix(next.getKey(), segments);
+            Double old = result.get(prefix);
+            result.put(prefix, (old == null ? 0.0d : old) + next.getValue() / seconds);
+        }
+        return result;
+    }
+
+    private static String prefix(String key, int segments) {
+        int end = -1;
+        for (int i = 0; i < segments; i++) {
+            end = key.indexOf('.', end + 1);
+            if (end < 0) {
+                return key;
+            }
+        }
+        return key.substring(0, end);
+    }
+
+    private static final Comparator<Map.Entry<String, Long>> HOTTEST_FIRST = new Comparator<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+            int result = Long.compare(b.getValue(), a.getValue());
+            return result != 0 ? result : a.getKey().compareTo(b.getKey());
+        }
+    };
+
+    @Override
+    public String toString() {
+        return "AccessProfile[" + getTotalReads() + " reads of " + reads.size() + " keys in " + getElapsedMillis()
+                + "ms, " + neverRead().size() + " keys never read]";
+    }
+}
@@ -0,0 +1,173 @@
+package net.wushilin.props;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Routes changed keys to subscriptions.
+ * <p>
+ * Subscriptions are indexed by exact key, and by prefix. A changed key is matched by looking up the key itself,
+ * and each of its prefixes ending with ".", so the cost depends on the key, not on the number of subscriptions.
+ * Each subscription collects pending keys and is scheduled at most once on the executor, so a burst of changes
+ * is delivered as one batch.
+ */
+final class ChangeDispatcher {
+    private final EnvAwareProperties owner;
+    private final Map<String, List<Sub>> exact = new ConcurrentHashMap<String, List<Sub>>();
+    private final Map<String, List<Sub>> prefixes = new ConcurrentHashMap<String, List<Sub>>();
+    private volatile Executor executor;
+    /**
+     * Receives exceptions thrown by listeners, null for the uncaught exception handler of the calling thread
+     */
+    private volatile Thread.UncaughtExceptionHandler errorHandler;
+
+    ChangeDispatcher(EnvAwareProperties owner, Executor executor) {
+        this.owner = owner;
+        this.executor = executor;
+    }
+
+    void setExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("Null executor");
+        }
+        this.executor = executor;
+    }
+
+    void setErrorHandler(Thread.UncaughtExceptionHandler errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    private void failed(Throwable e) {
+        Thread current = Thread.currentThread();
+        Thread.UncaughtExceptionHandler handler = errorHandler;
+        if (handler == null) {
+            handler = current.getUncaughtExceptionHandler();
+        }
+        handler.uncaughtException(current, e);
+    }
+
+    ChangeListener.Subscription subscribe(String keyOrPrefix, ChangeListener listener) {
+        final Map<String, List<Sub>> index = keyOrPrefix.isEmpty() || keyOrPrefix.endsWith(".") ? prefixes : exact;
+        final String key = keyOrPrefix;
+        final Sub sub = new Sub(listener);
+        // add and remove inside compute, so a list is never dropped while a subscription is added to it
+        index.compute(key, (k, subs) -> {
+            if (subs == null) {
+                subs = new CopyOnWriteArrayList<Sub>();
+            }
+            subs.add(sub);
+            return subs;
+        });
+        return new ChangeListener.Subscription() {
+            @Override
+            public void close() {
+                sub.closed = true;
+                index.computeIfPresent(key, (k, subs) -> {
+                    subs.remove(sub);
+                    return subs.isEmpty() ? null : subs;
+                });
+            }
+        };
+    }
+
+    /**
+     * Dispatch one changed key
+     * @param key The key
+     */
+    void changed(String key) {
+        changed(Collections.singletonList(key));
+    }
+
+    /**
+     * Dispatch a batch of changed keys
+     * @param keys The keys
+     */
+    void changed(Collection<String> keys) {
+        Set<Sub> touched = null;
+        for (String key : keys) {
+            touched = match(exact.get(key), key, touched);
+            if (prefixes.isEmpty()) {
+                continue;
+            }
+            touched = match(prefixes.get(""), key, touched);
+            for (int i = key.indexOf('.'); i >= 0; i = key.indexOf('.', i + 1)) {
+                touched = match(prefixes.get(key.substring(0, i + 1)), key, touched);
+            }
+        }
+        if (touched == null) {
+            return;
+        }
+        Executor target = executor;
+        for (Sub next : touched) {
+            next.schedule(target);
+        }
+    }
+
+    private static Set<Sub> match(List<Sub> subs, String key, Set<Sub> touched) {
+        if (subs == null) {
+            return touched;
+        }
+        for (Sub next : subs) {
+            next.pending.add(key);
+            if (touched == null) {
+                touched = new LinkedHashSet<Sub>();
+            }
+            touched.add(next);
+        }
+        return touched;
+    }
+
+    private final class Sub implements Runnable {
+        final ChangeListener listener;
+        final Set<String> pending = ConcurrentHashMap.newKeySet();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        volatile boolean closed;
+
+        Sub(ChangeListener listener) {
+            this.listener = listener;
+        }
+
+        void schedule(Executor target) {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    target.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the keys stay pending, and go out with the next change that schedules
+                    scheduled.set(false);
+                    failed(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    Set<String> batch = new LinkedHashSet<String>();
+                    Iterator<String> it = pending.iterator();
+                    while (it.hasNext()) {
+                        batch.add(it.next());
+                        it.remove();
+                    }
+                    if (!batch.isEmpty() && !closed) {
+                        try {
+                            listener.onChange(owner, Collections.unmodifiableSet(batch));
+                        } catch (RuntimeException e) {
+                            failed(e);
+                        }
+                    }
+                } finally {
+                    // even when a listener throws an Error, or the next change could never schedule it again
+                    scheduled.set(false);
+                }
+                if (pending.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package net.wushilin.props;
+
+import java.util.Set;
+
+/**
+ * Listener for changes of an EnvAwareProperties, see EnvAwareProperties.subscribe
+ */
+public interface ChangeListener {
+    /**
+     * Called on the change executor with all keys that changed since the last call. Calls to the same listener
+     * never overlap. Read the new values from source.
+     * @param source The properties that changed
+     * @param changedKeys The changed keys that match the subscription
+     */
+    void onChange(EnvAwareProperties source, Set<String> changedKeys);
+
+    /**
+     * Handle of a subscription. Close it to stop receiving changes.
+     */
+    interface Subscription extends AutoCloseable {
+        /**
+         * Stop receiving changes
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,380 @@
+package net.wushilin.props;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+/**
+ * Every resource with a given name on the classpath, e.g. META-INF/app-defaults.properties in each jar,
+ * merged into one source.
+ * <p>
+ * The name may be a glob: {@code *} matches within one path segment, {@code ?} matches one character, and
+ * {@code **} matches any number of segments, e.g. META-INF/defaults/*.properties. A ClassLoader can't list its
+ * resources, so globs are matched against the jars and directories of the classpath itself (the URLs of each
+ * URLClassLoader, or java.class.path for the application class loader). Resources that only a custom class
+ * loader can see are found by exact name, but not by glob.
+ * <p>
+ * Resources are merged in classpath order, and like ClassLoader.getResource, the first one that defines a key
+ * wins. Within one jar or directory, glob matches are merged in name order. The classpath is enumerated and the
+ * resources are read on the load executor, the jars in parallel.
+ * <p>
+ * The merged result is cached per class loader and resource name, together with a fingerprint of the classpath:
+ * the path, size and modification time of every classpath entry (and of the matching resources in directory
+ * entries). Later loads only compute the fingerprint, and scan the jars again only when it changed.
+ */
+class ClasspathResources implements PropertySource {
+    /**
+     * Cache per class loader, so class loaders can still be collected
+     */
+    private static final Map<ClassLoader, Map<String, Cached>> CACHE =
+            new WeakHashMap<ClassLoader, Map<String, Cached>>();
+
+    private static final class Cached {
+        final String fingerprint;
+        final CompletableFuture<Properties> result;
+
+        Cached(String fingerprint, CompletableFuture<Properties> result) {
+            this.fingerprint = fingerprint;
+            this.result = result;
+        }
+    }
+
+    private final ClassLoader loader;
+    private final String name;
+    /**
+     * The glob as a regular expression, or null when the name has no wildcards
+     */
+    private final Pattern glob;
+    /**
+     * The directory part of the glob before the first wildcard, e.g. META-INF/
+     */
+    private final String base;
+
+    ClasspathResources(ClassLoader loader, String name) {
+        this.loader = loader;
+        this.name = name.startsWith("/") ? name.substring(1) : name;
+        int wildcard = firstWildcard(this.name);
+        if (wildcard < 0) {
+            this.glob = null;
+            this.base = this.name;
+        } else {
+            this.glob = Pattern.compile(toRegex(this.name));
+            this.base = this.name.substring(0, this.name.lastIndexOf('/', wildcard) + 1);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "classpath*:" + name;
+    }
+
+    @Override
+    public CompletableFuture<Properties> load(final Executor executor) {
+        return CompletableFuture.supplyAsync(new Supplier<CompletableFuture<Properties>>() {
+            @Override
+            public CompletableFuture<Properties> get() {
+                return lookup(executor);
+            }
+        }, executor).thenCompose(new Function<CompletableFuture<Properties>, CompletionStage<Properties>>() {
+            @Override
+            public CompletionStage<Properties> apply(CompletableFuture<Properties> result) {
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Runs on the load executor: the cached result if the classpath didn't change, or a new scan
+     */
+    private CompletableFuture<Properties> lookup(Executor executor) {
+        String fingerprint = fingerprint();
+        Map<String, Cached> byName = cacheOf(loader);
+        Cached cached = byName.get(name);
+        if (cached != null && cached.fingerprint.equals(fingerprint) && !cached.result.isCompletedExceptionally()) {
+            return cached.result;
+        }
+        CompletableFuture<Properties> result;
+        try {
+            result = scan(executor);
+        } catch (IOException e) {
+            result = new CompletableFuture<Properties>();
+            result.completeExceptionally(e);
+            return result;
+        }
+        byName.put(name, new Cached(fingerprint, result));
+        return result;
+    }
+
+    private CompletableFuture<Properties> scan(Executor executor) throws IOException {
+        List<CompletableFuture<Properties>> parts = new ArrayList<CompletableFuture<Properties>>();
+        if (glob == null) {
+            Enumeration<URL> urls = loader.getResources(name);
+            while (urls.hasMoreElements()) {
+                parts.add(CompletableFuture.supplyAsync(new ReadTask(urls.nextElement()), executor));
+            }
+        } else {
+            for (URL url : classpath()) {
+                File entry = fileOf(url);
+                if (entry != null) {
+                    parts.add(CompletableFuture.supplyAsync(new GlobTask(entry), executor));
+                }
+            }
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(new Merge(parts));
+    }
+
+    private static final class ReadTask implements Supplier<Properties> {
+        private final URL url;
+
+        ReadTask(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public Properties get() {
+            try {
+                URLConnection connection = url.openConnection();
+                // jar connections are cached by default, and would keep every jar open
+                connection.setUseCaches(false);
+                try (InputStream istream = connection.getInputStream()) {
+                    Properties p = new Properties();
+                    p.load(istream);
+                    return p;
+                }
+            } catch (IOException e) {
+                throw new CompletionException(new IOException(url + ": " + e.getMessage(), e));
+            }
+        }
+    }
+
+    /**
+     * Every resource in one jar or directory that matches the glob, the first name in name order wins
+     */
+    private final class GlobTask implements Supplier<Properties> {
+        private final File entry;
+
+        GlobTask(File entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Properties get() {
+            Properties p = new Properties();
+            try {
+                if (entry.isDirectory()) {
+                    List<String> names = matches(entry);
+                    for (int i = names.size() - 1; i >= 0; i--) {
+                        try (InputStream istream = new FileInputStream(new File(entry, names.get(i)))) {
+                            p.load(istream);
+                        }
+                    }
+                } else if (entry.isFile()) {
+                    try (JarFile jar = new JarFile(entry)) {
+                        List<String> names = new ArrayList<String>();
+                        Enumeration<JarEntry> entries = jar.entries();
+                        while (entries.hasMoreElements()) {
+                            JarEntry next = entries.nextElement();
+                            if (!next.isDirectory() && next.getName().startsWith(base)
+                                    && glob.matcher(next.getName()).matches()) {
+                                names.add(next.getName());
+                            }
+                        }
+                        Collections.sort(names);
+                        for (int i = names.size() - 1; i >= 0; i--) {
+                            try (InputStream istream = jar.getInputStream(jar.getJarEntry(names.get(i)))) {
+                                p.load(istream);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new CompletionException(new IOException(entry + ": " + e.getMessage(), e));
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Merge in classpath order, the first resource that defines a key wins
+     */
+    private static final class Merge implements Function<Void, Properties> {
+        private final List<CompletableFuture<Properties>> parts;
+
+        Merge(List<CompletableFuture<Properties>> parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public Properties apply(Void ignored) {
+            Properties result = new Properties();
+            for (int i = parts.size() - 1; i >= 0; i--) {
+                result.putAll(parts.get(i).join());
+            }
+            return result;
+        }
+    }
+
+    private static Map<String, Cached> cacheOf(ClassLoader loader) {
+        synchronized (CACHE) {
+            Map<String, Cached> result = CACHE.get(loader);
+            if (result == null) {
+                result = new ConcurrentHashMap<String, Cached>();
+                CACHE.put(loader, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The classpath entries of the loader and its parents, parents first like the resource lookup
+     */
+    private List<URL> classpath() {
+        List<URL> result = new ArrayList<URL>();
+        boolean sawUrls = false;
+        for (ClassLoader l = loader; l != null; l = l.getParent()) {
+            if (l instanceof URLClassLoader) {
+                sawUrls = true;
+                result.addAll(0, Arrays.asList(((URLClassLoader) l).getURLs()));
+            }
+        }
+        if (!sawUrls) {
+            // the application class loader of java 9+ is not a URLClassLoader
+            String classPath = System.getProperty("java.class.path", "");
+            for (String entry : classPath.split(File.pathSeparator)) {
+                if (!entry.isEmpty()) {
+                    try {
+                        result.add(new File(entry).toURI().toURL());
+                    } catch (MalformedURLException e) {
+                        // not a usable path, the class loader can't use it either
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static File fileOf(URL url) {
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Path, size and modification time of the classpath entries of the loader and its parents
+     */
+    private String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        for (URL url : classpath()) {
+            File entry = fileOf(url);
+            if (entry != null) {
+                appendEntry(sb, entry);
+            } else {
+                sb.append(url).append(';');
+            }
+        }
+        return sb.toString();
+    }
+
+    private void appendEntry(StringBuilder sb, File entry) {
+        sb.append(entry.getPath()).append(':').append(entry.length()).append(':').append(entry.lastModified());
+        if (entry.isDirectory()) {
+            List<String> names = glob == null ? Collections.singletonList(name) : matches(entry);
+            for (String next : names) {
+                File resource = new File(entry, next);
+                sb.append(':').append(resource.length()).append(':').append(resource.lastModified());
+            }
+            sb.append(':').append(names.size());
+        }
+        sb.append(';');
+    }
+
+    /**
+     * Relative names of the files in a directory entry that match the glob, in name order
+     */
+    private List<String> matches(File entry) {
+        List<String> result = new ArrayList<String>();
+        collect(new File(entry, base), base, result);
+        Collections.sort(result);
+        return result;
+    }
+
+    private void collect(File dir, String prefix, List<String> out) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String relative = prefix + child.getName();
+            if (child.isDirectory()) {
+                collect(child, relative + "/", out);
+            } else if (glob.matcher(relative).matches()) {
+                out.add(relative);
+            }
+        }
+    }
+
+    private static int firstWildcard(String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Glob to regular expression: a {@code **} segment for any number of directories, * and ? within a segment
+     */
+    private static String toRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && glob.startsWith("**/", i)) {
+                sb.append("(?:.*/)?");
+                i += 2;
+            } else if (c == '*' && glob.startsWith("**", i)) {
+                sb.append(".*");
+                i++;
+            } else if (c == '*') {
+                sb.append("[^/]*");
+            } else if (c == '?') {
+                sb.append("[^/]");
+            } else if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            } else {
+                sb.append('\\').append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
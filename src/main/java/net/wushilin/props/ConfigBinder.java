@@ -0,0 +1,413 @@
+package net.wushilin.props;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Binds keys under a prefix to a config type. Supported types are:
+ * <ul>
+ *     <li>Interfaces: each no-arg getter (getPoolSize() or poolSize()) returns the bound value</li>
+ *     <li>Classes with a public no-arg constructor: public setters (setPoolSize(int)) and public non final fields</li>
+ * </ul>
+ * A property named poolSize is looked up as prefix + "poolSize", then prefix + "pool-size", then prefix + "pool.size".
+ * Properties whose type is itself an interface or a class with setters are bound from the first of those nested
+ * prefixes that has keys, and stay null when none has. A type that contains itself is rejected when it is bound
+ * again inside itself.
+ * <p>
+ * The accessor plan of a type is built with reflection once, and cached. Classes are bound through the cached
+ * method handles. Interfaces are implemented with java.lang.reflect.Proxy: each call looks up its method in
+ * a table built with the plan, and default methods run through cached special method handles.
+ */
+final class ConfigBinder {
+    private ConfigBinder() {
+    }
+
+    private static final ClassValue<Plan> PLANS = new ClassValue<Plan>() {
+        @Override
+        protected Plan computeValue(Class<?> type) {
+            return new Plan(type);
+        }
+    };
+
+    /**
+     * Bind a type
+     * @param p The properties to read from
+     * @param prefix The prefix, including the trailing "." unless empty
+     * @param type The type to bind
+     * @param <T> The type
+     * @return The bound instance
+     */
+    static <T> T bind(EnvAwareProperties p, String prefix, Class<T> type) {
+        return type.cast(PLANS.get(type).bind(p, prefix, new ArrayDeque<Class<?>>()));
+    }
+
+    /**
+     * Calls of Object methods on interface proxies
+     */
+    private static final int EQUALS = -1;
+    private static final int HASH_CODE = -2;
+    private static final int TO_STRING = -3;
+    private static final Map<Method, Integer> OBJECT_METHODS = new HashMap<Method, Integer>();
+
+    static {
+        try {
+            OBJECT_METHODS.put(Object.class.getMethod("equals", Object.class), EQUALS);
+            OBJECT_METHODS.put(Object.class.getMethod("hashCode"), HASH_CODE);
+            OBJECT_METHODS.put(Object.class.getMethod("toString"), TO_STRING);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * How to bind one property
+     */
+    private static final class Binding {
+        final String name;
+        final String[] keys;
+        final Class<?> type;
+        final boolean nested;
+        /**
+         * (Object target, Object value)void, null for interfaces
+         */
+        final MethodHandle setter;
+
+        Binding(String name, Class<?> type, MethodHandle setter) {
+            this.name = name;
+            this.keys = candidateKeys(name);
+            this.type = type;
+            this.nested = !Converters.supports(type) && isBindable(type);
+            this.setter = setter;
+        }
+    }
+
+    /**
+     * Accessor plan of a type
+     */
+    private static final class Plan {
+        final Class<?> type;
+        final Binding[] bindings;
+        /**
+         * ()Object, null for interfaces
+         */
+        final MethodHandle constructor;
+        /**
+         * For interfaces, the binding index of each getter, or one of the Object method codes
+         */
+        final Map<Method, Integer> getterIndex;
+        /**
+         * For interfaces, handles of the default methods, taking the proxy as first argument
+         */
+        final Map<Method, MethodHandle> defaults;
+
+        Plan(Class<?> type) {
+            this.type = type;
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            List<Binding> result = new ArrayList<Binding>();
+            if (type.isInterface()) {
+                this.constructor = null;
+                this.getterIndex = new HashMap<Method, Integer>(OBJECT_METHODS);
+                this.defaults = new HashMap<Method, MethodHandle>();
+                for (Method m : type.getMethods()) {
+                    if (m.isDefault()) {
+                        MethodHandle h = defaultMethod(m);
+                        if (h != null) {
+                            defaults.put(m, h);
+                        }
+                        continue;
+                    }
+                    if (m.getParameterCount() != 0 || Modifier.isStatic(m.getModifiers())
+                            || m.getReturnType() == void.class) {
+                        continue;
+                    }
+                    getterIndex.put(m, result.size());
+                    result.add(new Binding(propertyName(m.getName(), "get", "is"), m.getReturnType(), null));
+                }
+            } else {
+                this.getterIndex = null;
+                this.defaults = null;
+                try {
+                    this.constructor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                            .asType(MethodType.methodType(Object.class));
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalArgumentException(type + " needs a public no-arg constructor", e);
+                }
+                MethodType setterType = MethodType.methodType(void.class, Object.class, Object.class);
+                Set<String> seen = new HashSet<String>();
+                for (Method m : type.getMethods()) {
+                    if (m.getParameterCount() != 1 || Modifier.isStatic(m.getModifiers())
+                            || !m.getName().startsWith("set") || m.getName().length() == 3) {
+                        continue;
+                    }
+                    String name = propertyName(m.getName(), "set");
+                    try {
+                        MethodHandle h = lookup.unreflect(m).asType(setterType);
+                        if (seen.add(name)) {
+                            result.add(new Binding(name, m.getParameterTypes()[0], h));
+                        }
+                    } catch (IllegalAccessException e) {
+                        // not accessible, skip
+                    }
+                }
+                for (Field f : type.getFields()) {
+                    int mod = f.getModifiers();
+                    if (Modifier.isStatic(mod) || Modifier.isFinal(mod) || !seen.add(f.getName())) {
+                        continue;
+                    }
+                    try {
+                        result.add(new Binding(f.getName(), f.getType(), lookup.unreflectSetter(f).asType(setterType)));
+                    } catch (IllegalAccessException e) {
+                        // not accessible, skip
+                    }
+                }
+            }
+            this.bindings = result.toArray(new Binding[0]);
+        }
+
+        /**
+         * @param path The types being bound around this one, to reject types that contain themselves
+         */
+        Object bind(EnvAwareProperties p, String prefix, Deque<Class<?>> path) {
+            if (path.contains(type)) {
+                throw new IllegalArgumentException(type.getName() + " contains itself, at " + prefix);
+            }
+            path.push(type);
+            Object[] values = new Object[bindings.length];
+            for (int i = 0; i < bindings.length; i++) {
+                Binding b = bindings[i];
+                if (b.nested) {
+                    for (String key : b.keys) {
+                        if (p.hasKeysUnder(prefix + key + ".")) {
+                            values[i] = PLANS.get(b.type).bind(p, prefix + key + ".", path);
+                            break;
+                        }
+                    }
+                    continue;
+                }
+                for (String key : b.keys) {
+                    String raw = p.getProperty(prefix + key);
+                    if (raw != null) {
+                        try {
+                            values[i] = Converters.convert(raw, b.type);
+                        } catch (RuntimeException e) {
+                            throw new IllegalArgumentException("Unable to bind " + prefix + key + "=" + raw
+                                    + " to " + b.type.getSimpleName() + " " + type.getName() + "." + b.name, e);
+                        }
+                        break;
+                    }
+                }
+            }
+            path.pop();
+            if (constructor == null) {
+                return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new Values(this, values));
+            }
+            try {
+                Object target = constructor.invokeExact();
+                for (int i = 0; i < bindings.length; i++) {
+                    if (values[i] != null) {
+                        bindings[i].setter.invokeExact(target, values[i]);
+                    }
+                }
+                return target;
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalArgumentException("Unable to bind " + type.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Backs interface proxies with the values bound at bind time
+     */
+    private static final class Values implements InvocationHandler {
+        private final Plan plan;
+        private final Object[] values;
+
+        Values(Plan plan, Object[] values) {
+            this.plan = plan;
+            this.values = values;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Integer idx = plan.getterIndex.get(method);
+            if (idx == null) {
+                MethodHandle h = plan.defaults.get(method);
+                if (h == null) {
+                    throw new UnsupportedOperationException(method.toString());
+                }
+                Object[] all = new Object[args == null ? 1 : args.length + 1];
+                all[0] = proxy;
+                if (args != null) {
+                    System.arraycopy(args, 0, all, 1, args.length);
+                }
+                return h.invokeWithArguments(all);
+            }
+            int i = idx;
+            if (i >= 0) {
+                Object value = values[i];
+                return value != null ? value : Converters.defaultValue(method.getReturnType());
+            } else if (i == EQUALS) {
+                return proxy == args[0];
+            } else if (i == HASH_CODE) {
+                return System.identityHashCode(proxy);
+            }
+            StringBuilder sb = new StringBuilder(plan.type.getSimpleName()).append('{');
+            for (int j = 0; j < plan.bindings.length; j++) {
+                sb.append(j == 0 ? "" : ", ").append(plan.bindings[j].name).append('=').append(values[j]);
+            }
+            return sb.append('}').toString();
+        }
+    }
+
+    /**
+     * Handle that runs the body of a default method on a proxy, or null if the interface is not accessible
+     */
+    private static MethodHandle defaultMethod(Method m) {
+        Class<?> declaring = m.getDeclaringClass();
+        try {
+            return MethodHandles.privateLookupIn(declaring, MethodHandles.lookup()).unreflectSpecial(m, declaring);
+        } catch (IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isBindable(Class<?> type) {
+        if (type.isInterface()) {
+            return !type.getName().startsWith("java.");
+        }
+        if (type.isPrimitive() || type.isArray() || type.isEnum() || type.getName().startsWith("java.")) {
+            return false;
+        }
+        try {
+            type.getConstructor();
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static String propertyName(String method, String... prefixes) {
+        for (String prefix : prefixes) {
+            if (method.length() > prefix.length() && method.startsWith(prefix)
+                    && Character.isUpperCase(method.charAt(prefix.length()))) {
+                return Character.toLowerCase(method.charAt(prefix.length())) + method.substring(prefix.length() + 1);
+            }
+        }
+        return method;
+    }
+
+    /**
+     * poolSize is looked up as poolSize, pool-size and pool.size
+     */
+    private static String[] candidateKeys(String name) {
+        StringBuilder kebab = new StringBuilder();
+        StringBuilder dotted = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c) && i > 0) {
+                kebab.append('-');
+                dotted.append('.');
+            }
+            kebab.append(Character.toLowerCase(c));
+            dotted.append(Character.toLowerCase(c));
+        }
+        if (kebab.toString().equals(name)) {
+            return new String[]{name};
+        }
+        return new String[]{name, kebab.toString(), dotted.toString()};
+    }
+
+    /**
+     * String to type conversions used for binding
+     */
+    static final class Converters {
+        private Converters() {
+        }
+
+        static boolean supports(Class<?> type) {
+            return type == String.class || type.isPrimitive() || type.isEnum()
+                    || type == Integer.class || type == Long.class || type == Short.class || type == Byte.class
+                    || type == Double.class || type == Float.class || type == Boolean.class || type == Character.class
+                    || type == BigDecimal.class || type == BigInteger.class
+                    || type == File.class || type == Path.class || type == URI.class;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        static Object convert(String raw, Class<?> type) {
+            if (type == String.class) {
+                return raw;
+            }
+            String s = raw.trim();
+            if (type == int.class || type == Integer.class) {
+                return Integer.valueOf(s);
+            } else if (type == long.class || type == Long.class) {
+                return Long.valueOf(s);
+            } else if (type == boolean.class || type == Boolean.class) {
+                if (s.equalsIgnoreCase("true")) {
+                    return Boolean.TRUE;
+                } else if (s.equalsIgnoreCase("false")) {
+                    return Boolean.FALSE;
+                }
+                throw new IllegalArgumentException("Not a boolean: " + raw);
+            } else if (type == double.class || type == Double.class) {
+                return Double.valueOf(s);
+            } else if (type == float.class || type == Float.class) {
+                return Float.valueOf(s);
+            } else if (type == short.class || type == Short.class) {
+                return Short.valueOf(s);
+            } else if (type == byte.class || type == Byte.class) {
+                return Byte.valueOf(s);
+            } else if (type == char.class || type == Character.class) {
+                if (raw.length() != 1) {
+                    throw new IllegalArgumentException("Not a single character: " + raw);
+                }
+                return raw.charAt(0);
+            } else if (type == BigDecimal.class) {
+                return new BigDecimal(s);
+            } else if (type == BigInteger.class) {
+                return new BigInteger(s);
+            } else if (type.isEnum()) {
+                return Enum.valueOf((Class<? extends Enum>) type, s);
+            } else if (type == File.class) {
+                return new File(s);
+            } else if (type == Path.class) {
+                return Paths.get(s);
+            } else if (type == URI.class) {
+                return URI.create(s);
+            }
+            throw new IllegalArgumentException("Unsupported type " + type.getName());
+        }
+
+        static Object defaultValue(Class<?> type) {
+            if (!type.isPrimitive()) {
+                return null;
+            } else if (type == boolean.class) {
+                return Boolean.FALSE;
+            } else if (type == char.class) {
+                return (char) 0;
+            } else if (type == long.class) {
+                return 0L;
+            } else if (type == double.class) {
+                return 0d;
+            } else if (type == float.class) {
+                return 0f;
+            } else if (type == short.class) {
+                return (short) 0;
+            } else if (type == byte.class) {
+                return (byte) 0;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package net.wushilin.props;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
+
+/**
+ * Validation rules for a configuration: required keys, value types, numeric ranges and regex patterns.
+ * <p>
+ * Rules are given per key, or per key pattern in KeyQuery syntax ("*.timeout.ms"), in which case they apply to
+ * every matching key. A schema is compiled once by its builder and can be reused by any number of builds:
+ * <pre>
+ * ConfigSchema schema = ConfigSchema.newBuilder()
+ *         .required("db.url", "db.user")
+ *         .type("db.port", Integer.class).range("db.port", 1, 65535)
+ *         .type("*.timeout.ms", Long.class)
+ *         .pattern("env", "dev|test|prod")
+ *         .build();
+ * EnvAwareProperties p = EnvAwareProperties.newBuilder()...validate(schema).build();
+ * </pre>
+ * Validation reports all errors at once. Pattern rules find their keys through an index of the key segments,
+ * built once per validation, instead of matching every key. Each value is a separate check, so a large
+ * configuration is validated in parallel even when a few pattern rules cover most of it. A schema keeps no
+ * state between validations.
+ */
+public final class ConfigSchema {
+    /**
+     * Below this many values to check, validation runs on the calling thread
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+    /**
+     * Verdict of a value that passed, in the memo of one validation
+     */
+    private static final String PASSED = new String("passed");
+
+    private final Rule[] rules;
+    private final boolean hasPatterns;
+
+    private ConfigSchema(Rule[] rules) {
+        this.rules = rules;
+        boolean patterns = false;
+        for (Rule next : rules) {
+            patterns |= next.query != null;
+        }
+        this.hasPatterns = patterns;
+    }
+
+    /**
+     * Thrown when a configuration does not match its schema
+     */
+    public static class ValidationException extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> errors;
+
+        ValidationException(List<String> errors) {
+            super(message(errors));
+            this.errors = Collections.unmodifiableList(errors);
+        }
+
+        /**
+         * Get all errors, one per invalid or missing key
+         * @return The errors
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        private static String message(List<String> errors) {
+            StringBuilder sb = new StringBuilder("Invalid configuration, ").append(errors.size()).append(" error(s):");
+            for (String next : errors) {
+                sb.append("\n  ").append(next);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * One value to check against a rule, or a required key that is missing
+     */
+    private static final class Check {
+        final Rule rule;
+        final String key;
+        final String value;
+        String error;
+
+        Check(Rule rule, String key, String value) {
+            this.rule = rule;
+            this.key = key;
+            this.value = value;
+        }
+
+        Check(String error) {
+            this(null, null, null);
+            this.error = error;
+        }
+    }
+
+    /**
+     * All rules of one key or key pattern
+     */
+    private static final class Rule {
+        final String key;
+        final KeyQuery query;
+        boolean required;
+        Class<?> type;
+        BigDecimal min;
+        BigDecimal max;
+        Pattern pattern;
+
+        Rule(String key) {
+            this.key = key;
+            this.query = key.indexOf('*') >= 0 || key.indexOf('?') >= 0 ? KeyQuery.compile(key) : null;
+        }
+
+        Rule copy() {
+            Rule result = new Rule(key);
+            result.required = required;
+            result.type = type;
+            result.min = min;
+            result.max = max;
+            result.pattern = pattern;
+            return result;
+        }
+
+        private String error(String value) {
+            if (type != null) {
+                try {
+                    ConfigBinder.Converters.convert(value, type);
+                } catch (RuntimeException e) {
+                    return "is not a valid " + type.getSimpleName();
+                }
+            }
+            if (min != null || max != null) {
+                BigDecimal number;
+                try {
+                    number = new BigDecimal(value.trim());
+                } catch (NumberFormatException e) {
+                    return "is not a number";
+                }
+                if (min != null && number.compareTo(min) < 0) {
+                    return "is less than " + min;
+                }
+                if (max != null && number.compareTo(max) > 0) {
+                    return "is greater than " + max;
+                }
+            }
+            if (pattern != null && !pattern.matcher(value).matches()) {
+                return "does not match " + pattern.pattern();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Builder of a schema. Rules for the same key are combined.
+     */
+    public static class Builder {
+        private final Map<String, Rule> rules = new LinkedHashMap<String, Rule>();
+
+        private Builder() {
+        }
+
+        private Rule rule(String key) {
+            if (key == null || key.isEmpty()) {
+                throw new IllegalArgumentException("Key can't be empty");
+            }
+            Rule result = rules.get(key);
+            if (result == null) {
+                result = new Rule(key);
+                rules.put(key, result);
+            }
+            return result;
+        }
+
+        /**
+         * Keys that must be defined. For a key pattern, at least one key must match.
+         * @param keys The keys or key patterns
+         * @return self
+         */
+        public Builder required(String... keys) {
+            for (String next : keys) {
+                rule(next).required = true;
+            }
+            return this;
+        }
+
+        /**
+         * Values must convert to this type, with the same conversions as bind
+         * (primitives and their wrappers, BigDecimal, BigInteger, enums, File, Path, URI, String)
+         * @param key The key or key pattern
+         * @param type The type
+         * @return self
+         */
+        public Builder type(String key, Class<?> type) {
+            if (!ConfigBinder.Converters.supports(type)) {
+                throw new IllegalArgumentException("Unsupported type " + type.getName());
+            }
+            rule(key).type = type;
+            return this;
+        }
+
+        /**
+         * Values must be numbers in a range, bounds included
+         * @param key The key or key pattern
+         * @param min The lowest value, or null for no lower bound
+         * @param max The highest value, or null for no upper bound
+         * @return self
+         */
+        public Builder range(String key, Number min, Number max) {
+            Rule r = rule(key);
+            r.min = min == null ? null : new BigDecimal(min.toString());
+            r.max = max == null ? null : new BigDecimal(max.toString());
+            return this;
+        }
+
+        /**
+         * Values must fully match a regular expression
+         * @param key The key or key pattern
+         * @param regex The regular expression
+         * @return self
+         */
+        public Builder pattern(String key, String regex) {
+            rule(key).pattern = Pattern.compile(regex);
+            return this;
+        }
+
+        /**
+         * Compile the schema
+         * @return The schema
+         */
+        public ConfigSchema build() {
+            Rule[] result = new Rule[rules.size()];
+            int i = 0;
+            for (Rule next : rules.values()) {
+                result[i++] = next.copy();
+            }
+            return new ConfigSchema(result);
+        }
+    }
+
+    /**
+     * Start a new schema
+     * @return The builder
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Validate on the calling thread
+     * @param p The properties
+     * @return All errors, empty if valid
+     */
+    public List<String> validate(Properties p) {
+        List<Check> checks = plan(p);
+        checkRange(checks, 0, checks.size());
+        return errors(checks);
+    }
+
+    /**
+     * Validate, splitting the values to check across the executor when there are many
+     * @param p The properties
+     * @param executor The executor
+     * @return All errors, empty if valid, in rule order
+     */
+    public List<String> validate(Properties p, Executor executor) {
+        List<Check> checks = plan(p);
+        if (checks.size() < PARALLEL_THRESHOLD) {
+            checkRange(checks, 0, checks.size());
+            return errors(checks);
+        }
+        int chunks = Math.min(Runtime.getRuntime().availableProcessors(), checks.size() / (PARALLEL_THRESHOLD / 2));
+        List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>(chunks);
+        int size = (checks.size() + chunks - 1) / chunks;
+        for (int from = 0; from < checks.size(); from += size) {
+            pending.add(CompletableFuture.runAsync(new Chunk(checks, from, Math.min(from + size, checks.size())), executor));
+        }
+        for (CompletableFuture<Void> next : pending) {
+            try {
+                next.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        return errors(checks);
+    }
+
+    /**
+     * Validate and throw if invalid
+     * @param p The properties
+     * @param executor The executor to validate on
+     * @throws ValidationException With all errors, if invalid
+     */
+    public void check(Properties p, Executor executor) {
+        List<String> errors = validate(p, executor);
+        if (!errors.isEmpty()) {
+            throw new ValidationException(errors);
+        }
+    }
+
+    /**
+     * List the values each rule applies to, in rule order. Keys matched by a pattern are sorted.
+     */
+    private List<Check> plan(Properties p) {
+        PropertyLayer layer = PropertyLayer.of("validate", p);
+        KeyIndex index = hasPatterns ? new KeyIndex(layer.keys()) : null;
+        List<Check> result = new ArrayList<Check>(rules.length);
+        for (Rule next : rules) {
+            if (next.query == null) {
+                String value = layer.getProperty(next.key);
+                if (value != null) {
+                    result.add(new Check(next, next.key, value));
+                } else if (next.required) {
+                    result.add(new Check(next.key + ": required"));
+                }
+                continue;
+            }
+            SortedSet<String> keys = new TreeSet<String>();
+            index.collect(next.query, keys);
+            for (String key : keys) {
+                result.add(new Check(next, key, layer.getProperty(key)));
+            }
+            if (next.required && keys.isEmpty()) {
+                result.add(new Check(next.key + ": required, no key matches"));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check a range of values. Checks of one rule are next to each other, so the verdicts of a rule are
+     * remembered by value while its checks are run, e.g. for many *.timeout.ms keys with the same value.
+     */
+    private static void checkRange(List<Check> checks, int from, int to) {
+        Rule rule = null;
+        Map<String, String> verdicts = new HashMap<String, String>();
+        for (int i = from; i < to; i++) {
+            Check next = checks.get(i);
+            if (next.rule == null) {
+                continue;
+            }
+            if (next.rule != rule) {
+                rule = next.rule;
+                verdicts.clear();
+            }
+            String verdict = verdicts.get(next.value);
+            if (verdict == null) {
+                verdict = rule.error(next.value);
+                if (verdict == null) {
+                    verdict = PASSED;
+                }
+                verdicts.put(next.value, verdict);
+            }
+            if (verdict != PASSED) {
+                next.error = next.key + ": '" + next.value + "' " + verdict;
+            }
+        }
+    }
+
+    private static List<String> errors(List<Check> checks) {
+        List<String> result = new ArrayList<String>();
+        for (Check next : checks) {
+            if (next.error != null) {
+                result.add(next.error);
+            }
+        }
+        return result;
+    }
+
+    private static final class Chunk implements Runnable {
+        private final List<Check> checks;
+        private final int from;
+        private final int to;
+
+        Chunk(List<Check> checks, int from, int to) {
+            this.checks = checks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void run() {
+            checkRange(checks, from, to);
+        }
+    }
+}
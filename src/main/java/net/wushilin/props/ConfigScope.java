@@ -0,0 +1,122 @@
+package net.wushilin.props;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request scoped overlays of EnvAwareProperties.
+ * <p>
+ * The current overlays of a thread are a linked list of frames, one per nested scope, held in an
+ * InheritableThreadLocal so threads started inside a scope see it too. A frame is only valid while its
+ * scope is running: when the scope ends the frame is closed, so a thread that inherited it, e.g. a pool
+ * thread created inside the scope, stops seeing it instead of leaking it into unrelated work. Closing a frame
+ * also drops its references to the properties and the overlay, so a long lived thread that inherited it only
+ * keeps an empty frame, and lets go of that too on its next lookup or scope.
+ * <p>
+ * When no scope is open anywhere in the process, lookups cost a single volatile read.
+ */
+final class ConfigScope {
+    private ConfigScope() {
+    }
+
+    /**
+     * Number of scopes currently open in the process
+     */
+    private static final AtomicInteger OPEN = new AtomicInteger();
+
+    private static final InheritableThreadLocal<Frame> CURRENT = new InheritableThreadLocal<Frame>();
+
+    private static final class Frame {
+        /**
+         * Both null once closed
+         */
+        volatile EnvAwareProperties owner;
+        volatile Map<String, String> values;
+        final Frame parent;
+
+        Frame(EnvAwareProperties owner, Map<String, String> values, Frame parent) {
+            this.owner = owner;
+            this.values = values;
+            this.parent = parent;
+        }
+
+        void close() {
+            values = null;
+            owner = null;
+        }
+
+        boolean isClosed() {
+            return owner == null;
+        }
+    }
+
+    /**
+     * The innermost open frame of the current thread. Closed frames in front of it, inherited from a scope that
+     * has ended, are dropped from the thread.
+     */
+    private static Frame current() {
+        Frame head = CURRENT.get();
+        Frame f = head;
+        while (f != null && f.isClosed()) {
+            f = f.parent;
+        }
+        if (f != head) {
+            if (f == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(f);
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Lookup a key in the overlays of the current thread
+     * @param owner The properties being read
+     * @param key The key
+     * @return The overlay value, or null if no open overlay of owner has the key
+     */
+    static String lookup(EnvAwareProperties owner, String key) {
+        if (OPEN.get() == 0) {
+            return null;
+        }
+        for (Frame f = current(); f != null; f = f.parent) {
+            Map<String, String> values = f.values;
+            if (f.owner == owner && values != null) {
+                String value = values.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run a task with an overlay
+     * @param owner The properties the overlay applies to
+     * @param values The resolved overlay values
+     * @param task The task
+     * @param <T> The result type
+     * @return The task result
+     * @throws Exception If the task failed
+     */
+    static <T> T call(EnvAwareProperties owner, Map<String, String> values, Callable<T> task) throws Exception {
+        Frame parent = current();
+        Frame frame = new Frame(owner, values, parent);
+        CURRENT.set(frame);
+        OPEN.incrementAndGet();
+        try {
+            return task.call();
+        } finally {
+            frame.close();
+            OPEN.decrementAndGet();
+            if (parent == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(parent);
+            }
+        }
+    }
+}
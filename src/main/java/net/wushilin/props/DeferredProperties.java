@@ -0,0 +1,218 @@
+package net.wushilin.props;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+
+/**
+ * An EnvAwareProperties that is still being built, see Builder.buildDeferred.
+ * <p>
+ * All sources start loading when the build starts. Application startup can go on meanwhile, and read keys as
+ * soon as they are known:
+ * <pre>
+ * DeferredProperties config = EnvAwareProperties.newBuilder()...buildDeferred(executor);
+ * container.register("db.url", config.getProperty("db.url"));
+ * </pre>
+ * A read waits for the sources in priority order, and stops at the first one that defines the key, so it does
+ * not wait for the sources of lower priority. Its value, placeholders included, is the same as the finished
+ * build would give. Once the build is done, reads go straight to the result.
+ * <p>
+ * Values read before the build is done are not checked by the schema of the builder, and keys decided by
+ * sources that loaded fine stay readable even if the build fails. Use join or future to find out whether
+ * the whole configuration is valid.
+ */
+public final class DeferredProperties {
+    private final EnvAwareProperties.Builder builder;
+    private final List<PropertySource> sources;
+    private final List<CompletableFuture<Properties>> loads;
+    /**
+     * Snapshot of each loaded source, taken by the first read that needs it. Dropped once the build is done.
+     */
+    private volatile AtomicReferenceArray<PropertyLayer> layers;
+    private final CompletableFuture<EnvAwareProperties> result;
+    private volatile List<PropertyLayer> extraLayers;
+
+    /**
+     * Start the build
+     * @param builder A builder no one else changes
+     * @param executor The executor to build on
+     */
+    DeferredProperties(EnvAwareProperties.Builder builder, Executor executor) {
+        this.builder = builder;
+        Object[] target = builder.targets();
+        this.sources = EnvAwareProperties.sources(builder, target);
+        Executor loadOn = builder.loadExecutor() != null ? builder.loadExecutor() : executor;
+        List<CompletableFuture<Properties>> pending = new ArrayList<CompletableFuture<Properties>>(sources.size());
+        for (PropertySource next : sources) {
+            pending.add(next.load(loadOn));
+        }
+        this.loads = pending;
+        this.layers = new AtomicReferenceArray<PropertyLayer>(pending.size());
+        this.result = CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+                .handleAsync(new Finish(target), executor);
+        // reads go to the result from now on, the snapshots would only hold a second copy of every source
+        result.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                layers = null;
+            }
+        });
+    }
+
+    /**
+     * Builds the result once every source is loaded
+     */
+    private final class Finish implements BiFunction<Void, Throwable, EnvAwareProperties> {
+        private final Object[] target;
+
+        Finish(Object[] target) {
+            this.target = target;
+        }
+
+        @Override
+        public EnvAwareProperties apply(Void ignored, Throwable failure) {
+            Properties[] loaded = new Properties[sources.size()];
+            for (int i = 0; i < loaded.length; i++) {
+                loaded[i] = EnvAwareProperties.join(sources.get(i), loads.get(i));
+            }
+            return new EnvAwareProperties(builder, target, sources, Arrays.asList(loaded));
+        }
+    }
+
+    /**
+     * Lookup a key, waiting only for the sources that decide it
+     * @param key The key
+     * @return The resolved value, or null if no source defines it
+     * @throws IllegalArgumentException If a source that had to be read failed to load, or in strict mode,
+     *                                  if the value can't be resolved
+     */
+    public String getProperty(String key) {
+        if (result.isDone() && !result.isCompletedExceptionally()) {
+            return result.join().getProperty(key);
+        }
+        for (int i = 0; i < sources.size(); i++) {
+            String raw = layer(i).getProperty(key);
+            if (raw != null) {
+                return resolve(key, raw);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lookup a key, with default
+     * @param key The key
+     * @param defaultValue Returned when no source defines the key
+     * @return The value
+     */
+    public String getProperty(String key, String defaultValue) {
+        String value = getProperty(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Whether or not the build is done, successfully or not
+     * @return true if done
+     */
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    /**
+     * Wait for the build
+     * @return The properties
+     * @throws IllegalArgumentException If the build failed, same as Builder.build
+     */
+    public EnvAwareProperties join() {
+        try {
+            return result.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * The build as a future
+     * @return The future
+     */
+    public CompletableFuture<EnvAwareProperties> future() {
+        return result;
+    }
+
+    private PropertyLayer layer(int index) {
+        AtomicReferenceArray<PropertyLayer> snapshots = layers;
+        PropertyLayer result = snapshots != null ? snapshots.get(index) : null;
+        if (result == null) {
+            // without snapshots, only a read that started before the build was done gets here
+            PropertySource source = sources.get(index);
+            result = PropertyLayer.of(source.getName(), EnvAwareProperties.join(source, loads.get(index)));
+            if (snapshots != null && !snapshots.compareAndSet(index, null, result)) {
+                result = snapshots.get(index);
+            }
+        }
+        return result;
+    }
+
+    private List<PropertyLayer> extraLayers() {
+        List<PropertyLayer> result = extraLayers;
+        if (result == null) {
+            result = builder.extraLayers();
+            extraLayers = result;
+        }
+        return result;
+    }
+
+    private String resolve(String key, String raw) {
+        PlaceholderResolver resolver = builder.newResolver(new Lookup());
+        try {
+            return resolver.resolve(raw);
+        } catch (ResolutionException ex) {
+            if (builder.isStrictResolution()) {
+                throw new IllegalArgumentException("Unable to resolve " + key + ": " + ex.getMessage());
+            }
+            return raw;
+        }
+    }
+
+    /**
+     * The same layers the build resolves against, loading the sources as placeholders need them
+     */
+    private final class Lookup extends PropertyLayer {
+        Lookup() {
+            super("deferred");
+        }
+
+        @Override
+        public String getProperty(String key) {
+            for (int i = 0; i < sources.size(); i++) {
+                String value = layer(i).getProperty(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            for (PropertyLayer next : extraLayers()) {
+                String value = next.getProperty(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Set<String> keys() {
+            return Collections.emptySet();
+        }
+    }
+}
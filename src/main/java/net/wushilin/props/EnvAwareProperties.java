@@ -5,10 +5,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.io.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * EnvAware properties allows you to chain multiple properties, with resolution order,
@@ -52,6 +59,46 @@ public class EnvAwareProperties extends Properties {
          * The explicit overrides
          */
         private Properties overrides;
+        /**
+         * Whether or not record provenance during build
+         */
+        private boolean enableProvenance;
+        /**
+         * Timeout for each source in milliseconds, 0 means no timeout
+         */
+        private long sourceTimeoutMillis;
+        /**
+         * Executor for blocking source loads, null means the shared loader pool
+         */
+        private Executor loadExecutor;
+        /**
+         * Max number of keys nested inside each other during resolution
+         */
+        private int maxResolveDepth = DEFAULT_MAX_DEPTH;
+        /**
+         * Max length of a resolved value
+         */
+        private int maxExpandedLength = DEFAULT_MAX_LENGTH;
+        /**
+         * Max number of placeholder expansions for the whole build
+         */
+        private long maxTotalExpansions = DEFAULT_MAX_EXPANSIONS;
+        /**
+         * Whether or not resolution failures fail the build
+         */
+        private boolean strictResolution;
+        /**
+         * Whether or not load sources on the calling thread
+         */
+        private boolean startupOptimized;
+        /**
+         * Schema to validate the result with
+         */
+        private ConfigSchema schema;
+        /**
+         * Sample rate of access profiling, 0 means off
+         */
+        private int profileSampleEvery;
 
         /**
          * Default constructor
@@ -155,6 +202,103 @@ public class EnvAwareProperties extends Properties {
             return this;
         }
 
+        /**
+         * Record where every key came from during build, so it can be queried by explain(key).
+         * Off by default, the build does no extra work when it is off.
+         * @return self
+         */
+        public Builder enableProvenance() {
+            this.enableProvenance = true;
+            return this;
+        }
+
+        /**
+         * Do not record provenance
+         * @return self
+         */
+        public Builder disableProvenance() {
+            this.enableProvenance = false;
+            return this;
+        }
+
+        /**
+         * Limit how many keys may be nested inside each other, e.g. a=${b}, b=${c} is depth 3. Default 500.
+         * @param maxDepth The max depth
+         * @return self
+         */
+        public Builder maxResolveDepth(int maxDepth) {
+            this.maxResolveDepth = maxDepth;
+            return this;
+        }
+
+        /**
+         * Limit the length of a resolved value. Default 16M characters.
+         * @param maxLength The max length in characters
+         * @return self
+         */
+        public Builder maxExpandedLength(int maxLength) {
+            this.maxExpandedLength = maxLength;
+            return this;
+        }
+
+        /**
+         * Limit the number of placeholder expansions done by the whole build. Default 10,000,000.
+         * Together with the other limits this keeps build time bounded, even for configs with cycles
+         * or exponential expansions.
+         * @param maxExpansions The max number of expansions
+         * @return self
+         */
+        public Builder maxTotalExpansions(long maxExpansions) {
+            this.maxTotalExpansions = maxExpansions;
+            return this;
+        }
+
+        /**
+         * Fail with IllegalArgumentException on the first value that can't be resolved because of a cycle or a limit.
+         * By default such values are kept unresolved, and reported by getResolutionDiagnostics().
+         * @return self
+         */
+        public Builder strictResolution() {
+            this.strictResolution = true;
+            return this;
+        }
+
+        /**
+         * Validate the built properties against a schema. All violations are reported together, by throwing
+         * ConfigSchema.ValidationException from build(). Many values are checked in parallel on the load executor.
+         * @param schema The schema
+         * @return self
+         */
+        public Builder validate(ConfigSchema schema) {
+            this.schema = schema;
+            return this;
+        }
+
+        /**
+         * Count reads of each key from the end of the build, see startAccessProfiling
+         * @param sampleEvery 1 to count every read, n to count about one read in n
+         * @return self
+         */
+        public Builder profileAccess(int sampleEvery) {
+            if (sampleEvery < 1) {
+                throw new IllegalArgumentException("Sample rate must be at least 1, got " + sampleEvery);
+            }
+            this.profileSampleEvery = sampleEvery;
+            return this;
+        }
+
+        /**
+         * Optimize the build for process startup, e.g. for command line tools and native images.
+         * Sources are loaded one by one on the calling thread, so no thread pool or future is created, and no
+         * lambda, regex or reflection is used while building. Best when the sources are local files.
+         * loadExecutor and sourceTimeout are ignored.
+         * @return self
+         */
+        public Builder startupOptimized() {
+            this.startupOptimized = true;
+            return this;
+        }
+
         /**
          * Add override paraemter
          * @param key Property key
@@ -259,11 +403,43 @@ public class EnvAwareProperties extends Properties {
          */
         public Builder thenAddMap(Map<String, String>... p) {
             for (Map<String, String> next : p) {
-                this.target.add(p);
+                this.target.add(next);
+            }
+            return this;
+        }
+
+        /**
+         * Add custom sources to the end. All sources are loaded in parallel during build.
+         * @param sources The sources, e.g. from PropertySources
+         * @return self
+         */
+        public Builder thenAddSource(PropertySource... sources) {
+            for (PropertySource next : sources) {
+                this.target.add(next);
             }
             return this;
         }
 
+        /**
+         * Fail the build if any source takes longer than this to load
+         * @param timeoutMillis Timeout in milliseconds, 0 for no timeout
+         * @return self
+         */
+        public Builder sourceTimeout(long timeoutMillis) {
+            this.sourceTimeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        /**
+         * Executor to load blocking sources with. By default a shared pool of daemon threads is used.
+         * @param executor The executor
+         * @return self
+         */
+        public Builder loadExecutor(Executor executor) {
+            this.loadExecutor = executor;
+            return this;
+        }
+
         /**
          * Add properties to files
          * @param files The files to read in order
@@ -289,6 +465,44 @@ public class EnvAwareProperties extends Properties {
             return this;
         }
 
+        /**
+         * Add JSON files, flattened to dotted keys like a.b[0].c. Files are streamed, no tree is built.
+         * @param files The files to read in order
+         * @return self
+         */
+        public Builder thenAddJson(File... files) {
+            for (File next : files) {
+                this.target.add(PropertySources.json(next));
+            }
+            return this;
+        }
+
+        /**
+         * Add YAML files, flattened to dotted keys like a.b[0].c. See PropertySources.yaml for the supported subset.
+         * @param files The files to read in order
+         * @return self
+         */
+        public Builder thenAddYaml(File... files) {
+            for (File next : files) {
+                this.target.add(PropertySources.yaml(next));
+            }
+            return this;
+        }
+
+        /**
+         * Add every resource with these names on the classpath, e.g. META-INF/app-defaults.properties in all jars.
+         * For each name, the resources are merged in classpath order, and the first one that defines a key wins.
+         * Names may be globs, e.g. META-INF/defaults/*.properties.
+         * @param names Resource names or globs
+         * @return self
+         */
+        public Builder thenAddClasspathResources(String... names) {
+            for (String name : names) {
+                this.target.add(PropertySources.classpathResources(name));
+            }
+            return this;
+        }
+
         /**
          * Undo whatever had been added so far, but keeping the overrides
          * @return self
@@ -303,7 +517,91 @@ public class EnvAwareProperties extends Properties {
          * @return self
          */
         public EnvAwareProperties build() {
-            return new EnvAwareProperties(this.enableCwdJProperties, this.enableHomeJProperties, this.enableRootJProperties, this.enableEnvironment, this.enableSysProperties, target);
+            return new EnvAwareProperties(this);
+        }
+
+        /**
+         * Build the properties in the background. Sources start loading right away, on the load executor if one
+         * was set, else on the given executor, and the result is resolved and validated on the given executor.
+         * The builder can be changed or reused as soon as this returns.
+         * @param executor The executor to build on
+         * @return The future result. It fails with IllegalArgumentException, like build, if a source
+         *         can't be loaded or the result is invalid.
+         */
+        public CompletableFuture<EnvAwareProperties> buildAsync(Executor executor) {
+            return buildDeferred(executor).future();
+        }
+
+        /**
+         * Build in the background like buildAsync, returning a view that can be read while the build runs.
+         * A read blocks only until the sources that decide its key are loaded. See DeferredProperties.
+         * @param executor The executor to build on
+         * @return The deferred properties
+         */
+        public DeferredProperties buildDeferred(Executor executor) {
+            if (executor == null) {
+                throw new NullPointerException("Null executor");
+            }
+            return new DeferredProperties(copy(), executor);
+        }
+
+        /**
+         * Copy of this builder with its own target list and overrides, for builds that outlive the call
+         */
+        private Builder copy() {
+            Builder result = new Builder();
+            result.target = new ArrayList<Object>(target);
+            result.overrides = new Properties();
+            synchronized (overrides) {
+                result.overrides.putAll(overrides);
+            }
+            for (int i = 0; i < result.target.size(); i++) {
+                if (result.target.get(i) == overrides) {
+                    result.target.set(i, result.overrides);
+                }
+            }
+            result.enableCwdJProperties = enableCwdJProperties;
+            result.enableHomeJProperties = enableHomeJProperties;
+            result.enableRootJProperties = enableRootJProperties;
+            result.enableEnvironment = enableEnvironment;
+            result.enableSysProperties = enableSysProperties;
+            result.enableProvenance = enableProvenance;
+            result.sourceTimeoutMillis = sourceTimeoutMillis;
+            result.loadExecutor = loadExecutor;
+            result.maxResolveDepth = maxResolveDepth;
+            result.maxExpandedLength = maxExpandedLength;
+            result.maxTotalExpansions = maxTotalExpansions;
+            result.strictResolution = strictResolution;
+            result.startupOptimized = startupOptimized;
+            result.schema = schema;
+            result.profileSampleEvery = profileSampleEvery;
+            return result;
+        }
+
+        /**
+         * Targets, flags and limits read by DeferredProperties
+         */
+        Object[] targets() {
+            return target.toArray();
+        }
+
+        Executor loadExecutor() {
+            return loadExecutor;
+        }
+
+        List<PropertyLayer> extraLayers() {
+            List<PropertyLayer> result = new ArrayList<PropertyLayer>(5);
+            addExtraLayers(result, enableCwdJProperties, enableHomeJProperties, enableRootJProperties,
+                    enableSysProperties, enableEnvironment);
+            return result;
+        }
+
+        PlaceholderResolver newResolver(PropertyLayer lookup) {
+            return new PlaceholderResolver(lookup, maxResolveDepth, maxExpandedLength, maxTotalExpansions);
+        }
+
+        boolean isStrictResolution() {
+            return strictResolution;
         }
     }
 
@@ -315,11 +613,39 @@ public class EnvAwareProperties extends Properties {
         return new Builder();
     }
 
+    /**
+     * Taken first by merge when two instances have the same identity hash code
+     */
+    private static final Object TIE_LOCK = new Object();
+
     /**
      * This controls max resolution depth where a property is referencing another, the other
      * properties might reference more other properties.
      */
-    private static final int MAX_DEPTH = 500;
+    private static final int DEFAULT_MAX_DEPTH = 500;
+
+    /**
+     * Default max length of a resolved value
+     */
+    private static final int DEFAULT_MAX_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Default max number of placeholder expansions per build
+     */
+    private static final long DEFAULT_MAX_EXPANSIONS = 10_000_000L;
+
+    /**
+     * Resolution limits, also used by getPropertyResolve
+     */
+    private int maxResolveDepth = DEFAULT_MAX_DEPTH;
+    private int maxExpandedLength = DEFAULT_MAX_LENGTH;
+    private long maxTotalExpansions = DEFAULT_MAX_EXPANSIONS;
+    private boolean strictResolution;
+
+    /**
+     * Values that could not be resolved during build
+     */
+    private transient List<String> diagnostics = Collections.emptyList();
 
     /**
      * Flag to control if cwd loading of .properties
@@ -344,123 +670,221 @@ public class EnvAwareProperties extends Properties {
      */
     private boolean enableSysProperties = true;
 
-    private EnvAwareProperties(boolean enableCwdJProperties, boolean enableHomeJProperties,
-                              boolean enableRootJProperties, boolean enableEnv, boolean enableSysProperties,
-                              List<Object> targets) {
-        this.enableCwdJProperties = enableCwdJProperties;
-        this.enableHomeJProperties = enableHomeJProperties;
-        this.enableRootJProperties = enableRootJProperties;
-        this.enableEnvironment = enableEnv;
-        this.enableSysProperties = enableSysProperties;
-        loadAll(targets.toArray());
+    /**
+     * Where each key came from, only when the builder enabled provenance
+     */
+    private transient Provenance provenance;
+
+    /**
+     * Change subscriptions, created by the first subscribe
+     */
+    private transient volatile ChangeDispatcher dispatcher;
+
+    /**
+     * Key trie for query, built by the first query and then updated by every write. Guarded by this.
+     */
+    private transient KeyIndex keyIndex;
+
+    /**
+     * Read counters, only while access profiling is on
+     */
+    private transient volatile AccessCounter accessCounter;
+
+    /**
+     * Changed whenever a value is added, changed or removed
+     */
+    private transient volatile int changeCount;
+
+    private EnvAwareProperties(Builder builder) {
+        this(builder, builder.target.toArray(), null, null);
+    }
+
+    /**
+     * Build from sources that may already be loaded
+     * @param builder The builder
+     * @param target The targets of the builder
+     * @param sources The sources of the targets, or null to create and load them here
+     * @param loaded The loaded sources, or null to load them here
+     */
+    EnvAwareProperties(Builder builder, Object[] target, List<PropertySource> sources, List<Properties> loaded) {
+        this.enableCwdJProperties = builder.enableCwdJProperties;
+        this.enableHomeJProperties = builder.enableHomeJProperties;
+        this.enableRootJProperties = builder.enableRootJProperties;
+        this.enableEnvironment = builder.enableEnvironment;
+        this.enableSysProperties = builder.enableSysProperties;
+        this.maxResolveDepth = builder.maxResolveDepth;
+        this.maxExpandedLength = builder.maxExpandedLength;
+        this.maxTotalExpansions = builder.maxTotalExpansions;
+        this.strictResolution = builder.strictResolution;
+        if (sources == null) {
+            sources = sources(builder, target);
+        }
+        if (loaded == null) {
+            loaded = builder.startupOptimized ? loadInline(sources) : loadParallel(builder, sources);
+        }
+        loadAll(builder, target, sources, loaded);
+        if (builder.schema != null) {
+            builder.schema.check(this, loadExecutor(builder));
+        }
+        if (builder.profileSampleEvery > 0) {
+            startAccessProfiling(builder.profileSampleEvery);
+        }
+    }
+
+    private static Executor loadExecutor(Builder builder) {
+        if (builder.startupOptimized) {
+            return PropertySources.directExecutor();
+        }
+        return builder.loadExecutor != null ? builder.loadExecutor : PropertySources.defaultExecutor();
     }
 
-    private void loadAll(Object... target) {
-        List<Properties> candidates = new ArrayList<Properties>(target.length);
+    /**
+     * Create the source of each target, in the same order
+     */
+    static List<PropertySource> sources(Builder builder, Object[] target) {
+        List<PropertySource> sources = new ArrayList<PropertySource>(target.length);
         for (Object next : target) {
             if (next == null) {
                 throw new NullPointerException("Null object received");
             }
-            try {
-                candidates.add(toProperties(next));
-            } catch (Exception ex) {
-                throw new IllegalArgumentException(ex);
+            PropertySource source = PropertySources.of(next, builder.enableProvenance);
+            if (builder.sourceTimeoutMillis > 0 && !builder.startupOptimized) {
+                source = PropertySources.withTimeout(source, builder.sourceTimeoutMillis);
             }
+            sources.add(source);
         }
-        initialize(candidates.toArray(new Properties[0]));
+        return sources;
     }
 
-    private void initialize(Properties... toLoad) {
-        Properties resolved = new Properties();
-        Set<String> keys = new HashSet<String>();
-        List<Properties> list = new ArrayList<>();
-        list.addAll(Arrays.asList(toLoad));
-        List<Object> extraKeys = new ArrayList<>();
-        List<Properties> extraList = new ArrayList<>();
+    private void loadAll(Builder builder, Object[] target, List<PropertySource> sources, List<Properties> candidates) {
+        Provenance.Recorder recorder = null;
+        if (builder.enableProvenance) {
+            recorder = new Provenance.Recorder();
+            for (int i = 0; i < target.length; i++) {
+                String name = target[i] == builder.overrides ? "overrides" : sources.get(i).getName();
+                recorder.addSource(name, Provenance.lines(candidates.get(i)));
+            }
+        }
+        initialize(recorder, candidates.toArray(new Properties[0]));
+    }
 
-        if (this.enableCwdJProperties) {
-            extraList.add(fromCurrentDirectoryEnv());
+    /**
+     * Start all loads, then wait for them in order
+     */
+    private static List<Properties> loadParallel(Builder builder, List<PropertySource> sources) {
+        Executor executor = loadExecutor(builder);
+        List<CompletableFuture<Properties>> pending = new ArrayList<CompletableFuture<Properties>>(sources.size());
+        for (PropertySource next : sources) {
+            pending.add(next.load(executor));
         }
-        if (this.enableHomeJProperties) {
-            extraList.add(fromHomeEnv());
+        List<Properties> result = new ArrayList<Properties>(sources.size());
+        for (int i = 0; i < sources.size(); i++) {
+            result.add(join(sources.get(i), pending.get(i)));
         }
-        if (this.enableRootJProperties) {
-            extraList.add(fromRootEnv());
+        return result;
+    }
+
+    /**
+     * Wait for a load, failures are reported with the name of the source
+     */
+    static Properties join(PropertySource source, CompletableFuture<Properties> pending) {
+        try {
+            return pending.join();
+        } catch (CompletionException ex) {
+            throw new IllegalArgumentException(source.getName() + ": " + ex.getCause().getMessage(), ex.getCause());
+        } catch (Exception ex) {
+            throw new IllegalArgumentException(ex);
         }
-        if (this.enableSysProperties) {
-            extraList.add(sysProps());
+    }
+
+    /**
+     * Load one by one on the calling thread. Built in sources are read directly, without any future or thread pool.
+     */
+    private static List<Properties> loadInline(List<PropertySource> sources) {
+        List<Properties> result = new ArrayList<Properties>(sources.size());
+        for (PropertySource next : sources) {
+            try {
+                result.add(PropertySources.loadNow(next));
+            } catch (IOException ex) {
+                throw new IllegalArgumentException(next.getName() + ": " + ex.getMessage(), ex);
+            }
         }
-        if (this.enableEnvironment) {
-            extraList.add(sysEnv());
+        return result;
+    }
+
+    private void initialize(Provenance.Recorder recorder, Properties... toLoad) {
+        List<PropertyLayer> sources = new ArrayList<PropertyLayer>(toLoad.length);
+        for (int i = 0; i < toLoad.length; i++) {
+            sources.add(PropertyLayer.of("source#" + i, toLoad[i]));
         }
-        for (Properties next : list) {
-            for (Object nextKey : next.keySet()) {
-                resolved.putIfAbsent(nextKey, next.get(nextKey));
-                keys.add((String) nextKey);
-            }
+        initialize(recorder, sources);
+    }
+
+    /**
+     * Resolve the keys of the source layers into this
+     * @param recorder Provenance recorder, or null
+     * @param sources The layers whose keys are copied, in order of priority
+     */
+    private void initialize(Provenance.Recorder recorder, List<PropertyLayer> sources) {
+        List<PropertyLayer> layers = new ArrayList<PropertyLayer>(sources.size() + 5);
+        Set<String> keys = new LinkedHashSet<String>();
+        for (PropertyLayer layer : sources) {
+            layers.add(layer);
+            keys.addAll(layer.keys());
         }
 
         /**
-         * Extra env keys will be removed at last
+         * Extra layers are only used for lookups, their keys are never copied into this
          */
-        for (Properties next : extraList) {
-            for (Object nextKey : next.keySet()) {
-                if (!resolved.containsKey(nextKey)) {
-                    extraKeys.add(nextKey);
-                    resolved.put(nextKey, next.get(nextKey));
-                }
-                keys.add((String) nextKey);
+        addExtraLayers(layers, enableCwdJProperties, enableHomeJProperties, enableRootJProperties,
+                enableSysProperties, enableEnvironment);
+        PropertyLayer resolved = PropertyLayer.stack(layers);
+
+        PropertyLayer lookup = resolved;
+        if (recorder != null) {
+            for (int i = sources.size(); i < layers.size(); i++) {
+                recorder.addSource(layers.get(i).getName(), null);
             }
+            recorder.setLayers(layers);
+            lookup = recorder.lookup();
         }
-
+        PlaceholderResolver resolver = newResolver(lookup);
         for (String nextKey : keys) {
-            String originalKey = nextKey;
+            if (recorder != null) {
+                recorder.beginKey(nextKey);
+            }
             String originalValue = resolved.getProperty(nextKey);
-            String resolvedKey = resolveEnv(nextKey, resolved);
-            //String valueRaw = resolved.getProperty(resolvedKey);
-            String resolvedValue = resolveEnv(originalValue, resolved);
-            setProperty(originalKey, resolvedValue);
-        }
-
-
-        for (Object extraK : extraKeys) {
-            remove(extraK);
-        }
-    }
-
-    private Properties toProperties(Object next) throws IOException {
-        if (next instanceof InputStream) {
-            Properties p = new Properties();
-            p.load((InputStream) next);
-            return p;
-        } else if (next instanceof Reader) {
-            Properties p = new Properties();
-            p.load((Reader) next);
-            return p;
-        } else if (next instanceof File) {
-            try (FileInputStream fis = new FileInputStream((File) next)) {
-                return toProperties(fis);
-            }
-        } else if (next instanceof Properties) {
-            return (Properties) next;
-        } else if (next instanceof Map) {
-            Properties p = new Properties();
-            Set<Map.Entry> entries = ((Map) next).entrySet();
-            for (Map.Entry nextEntry : entries) {
-                Object ko = nextEntry.getKey();
-                Object vo = nextEntry.getValue();
-                if (!(ko instanceof String) || !(vo instanceof String)) {
-                    throw new IllegalArgumentException("Map must be string -> string. Found " + ko.getClass() + " -> " + vo.getClass());
-                }
-                p.put((String) ko, (String) vo);
+            String resolvedValue = resolve(resolver, nextKey, originalValue, true);
+            setProperty(nextKey, resolvedValue);
+        }
+        if (recorder != null) {
+            this.provenance = recorder.build();
+        }
+    }
+
+    PlaceholderResolver newResolver(PropertyLayer lookup) {
+        return new PlaceholderResolver(lookup, maxResolveDepth, maxExpandedLength, maxTotalExpansions);
+    }
+
+    /**
+     * Resolve a value. On failure the raw value is kept, or in strict mode an IllegalArgumentException is thrown.
+     * Failures during build are remembered in diagnostics.
+     */
+    String resolve(PlaceholderResolver resolver, String key, String raw, boolean building) {
+        try {
+            return resolver.resolve(raw);
+        } catch (ResolutionException ex) {
+            if (strictResolution) {
+                throw new IllegalArgumentException("Unable to resolve " + key + ": " + ex.getMessage());
             }
-            return p;
-        } else if (next instanceof String) {
-            try (InputStream istream = EnvAwareProperties.class.getResourceAsStream((String) next)) {
-                return toProperties(istream);
+            if (!building) {
+                return raw;
             }
-        } else {
-            throw new IllegalArgumentException("Not sure how to deal with target of type " + next.getClass());
+            if (diagnostics.isEmpty()) {
+                diagnostics = new ArrayList<String>();
+            }
+            diagnostics.add(key + ": " + ex.getMessage());
+            return raw;
         }
     }
 
@@ -474,30 +898,48 @@ public class EnvAwareProperties extends Properties {
      *               and it will be resolved as much as we can!
      */
     public EnvAwareProperties(Properties... toLoad) {
-        initialize(toLoad);
+        initialize(null, toLoad);
+    }
+
+    /**
+     * Create from layers, without copying them first
+     */
+    private EnvAwareProperties(List<PropertyLayer> sources) {
+        initialize(null, sources);
     }
 
-    private Properties fromRootEnv() {
-        return loadFile(new File("/.jproperties"));
+    /**
+     * Add the lookup only layers after the loaded ones, lowest priority last
+     */
+    static void addExtraLayers(List<PropertyLayer> layers, boolean cwd, boolean home, boolean root,
+                               boolean sysProperties, boolean environment) {
+        if (cwd) {
+            layers.add(fromCurrentDirectoryEnv());
+        }
+        if (home) {
+            layers.add(fromHomeEnv());
+        }
+        if (root) {
+            layers.add(fromRootEnv());
+        }
+        if (sysProperties) {
+            layers.add(PropertyLayer.systemProperties());
+        }
+        if (environment) {
+            layers.add(PropertyLayer.environment());
+        }
     }
 
-    private Properties fromHomeEnv() {
-        return loadFile(new File(System.getenv("HOME") + "/.jproperties"));
+    private static PropertyLayer fromRootEnv() {
+        return PropertyLayer.fromOptionalFile(new File("/.jproperties"));
     }
 
-    private Properties loadFile(File file) {
-        Properties prop = new Properties();
-        if (file != null && file.isFile() && file.exists() && file.canRead() && file.length() > 0) {
-            try (FileInputStream fis = new FileInputStream(file)) {
-                prop.load(fis);
-            } catch (IOException e) {
-            }
-        }
-        return prop;
+    private static PropertyLayer fromHomeEnv() {
+        return PropertyLayer.fromOptionalFile(new File(System.getenv("HOME") + "/.jproperties"));
     }
 
-    private Properties fromCurrentDirectoryEnv() {
-        return loadFile(new File(".jproperties"));
+    private static PropertyLayer fromCurrentDirectoryEnv() {
+        return PropertyLayer.fromOptionalFile(new File(".jproperties"));
     }
 
     /**
@@ -524,28 +966,18 @@ public class EnvAwareProperties extends Properties {
      * @throws IOException If IO Exception happened
      */
     public static EnvAwareProperties fromFile(java.io.File... input) throws IOException {
-        InputStream[] isrs = Arrays.stream(input).map(
-                i -> {
-                    try {
-                        return new FileInputStream(i);
-                    } catch (FileNotFoundException e) {
-                        e.printStackTrace();
-                        return null;
-                    }
-                }
-        ).filter(i -> i != null).collect(Collectors.toList()).toArray(new InputStream[0]);
-        try {
-            return fromInputStream(isrs);
-        } finally {
-            Arrays.stream(isrs).forEach(
-                    i -> {
-                        try {
-                            i.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-            );
+        List<InputStream> isrs = new ArrayList<InputStream>(input.length);
+        for (File next : input) {
+            try {
+                isrs.add(new FileInputStream(next));
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            return fromInputStream(isrs.toArray(new InputStream[0]));
+        } finally {
+            closeAll(isrs);
         }
     }
 
@@ -560,22 +992,23 @@ public class EnvAwareProperties extends Properties {
         if (is == null || is.length == 0) {
             throw new IllegalArgumentException("None of the inputs are valid!");
         }
-        Properties[] base = Arrays.stream(is).filter(i -> i != null).map(
-                i -> {
-                    try {
-                        Properties p = new Properties();
-                        p.load(i);
-                        return p;
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
-                        return null;
-                    }
-                }
-        ).filter(i -> i != null).collect(Collectors.toList()).toArray(new Properties[0]);
-        if (base.length == 0) {
+        List<Properties> base = new ArrayList<Properties>(is.length);
+        for (InputStream next : is) {
+            if (next == null) {
+                continue;
+            }
+            try {
+                Properties p = new Properties();
+                p.load(next);
+                base.add(p);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (base.isEmpty()) {
             throw new IllegalArgumentException("None of the inputs are valid!");
         }
-        return new EnvAwareProperties(base);
+        return new EnvAwareProperties(base.toArray(new Properties[0]));
     }
 
     /**
@@ -586,21 +1019,27 @@ public class EnvAwareProperties extends Properties {
      * @throws IOException If IO Exception happened
      */
     public static EnvAwareProperties fromClassPath(String... path) throws IOException {
-        InputStream[] isrs = Arrays.stream(path).map(
-                i -> EnvAwareProperties.class.getResourceAsStream(i)
-        ).filter(i -> i != null).collect(Collectors.toList()).toArray(new InputStream[0]);
+        List<InputStream> isrs = new ArrayList<InputStream>(path.length);
+        for (String next : path) {
+            InputStream istream = EnvAwareProperties.class.getResourceAsStream(next);
+            if (istream != null) {
+                isrs.add(istream);
+            }
+        }
         try {
-            return fromInputStream(isrs);
+            return fromInputStream(isrs.toArray(new InputStream[0]));
         } finally {
-            Arrays.stream(isrs).forEach(
-                    i -> {
-                        try {
-                            i.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-            );
+            closeAll(isrs);
+        }
+    }
+
+    private static void closeAll(List<InputStream> streams) {
+        for (InputStream next : streams) {
+            try {
+                next.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -626,40 +1065,6 @@ public class EnvAwareProperties extends Properties {
         return p;
     }
 
-    private static String resolveEnv(String raw, Properties env) {
-        try {
-            return resolveEnv(raw, env, 0);
-        } catch (CircularReferenceException ex) {
-            return raw;
-        }
-    }
-
-    private static String resolveEnv(String raw, Properties env, int depth) throws CircularReferenceException {
-        if (depth >= MAX_DEPTH) {
-            throw new CircularReferenceException("Possible resolution loop!");
-        }
-        if (raw == null) {
-            return null;
-        }
-        Pattern p = Pattern.compile("\\$\\{([a-zA-Z0-9-_.]+)\\}");
-        String result = raw;
-        Matcher m = p.matcher(raw);
-        while (m.find()) {
-            String key = m.group(1);
-            String value = env.getProperty(key);
-            if (value != null) {
-
-                result = result.replaceAll(Pattern.quote("${" + key + "}"), Matcher.quoteReplacement(value));
-            }
-        }
-        if (result.equals(raw)) {
-            // no more solution possible
-            return result;
-        } else {
-            return resolveEnv(result, env, depth + 1);
-        }
-    }
-
     /**
      * Load the properties from the 2 locations in order:
      * 1. ./config/application.properties
@@ -688,16 +1093,606 @@ public class EnvAwareProperties extends Properties {
 
     /**
      * Merge with another EnvAwareProperties. Other has lower priority.
+     * Both are copied while both their locks are held, so the copies are of the same moment. The result is built
+     * from the copies after the locks are released.
      * @param other The other EnvAwareProperties to merge
      * @return The merged EnvAwareProperties
      */
     public EnvAwareProperties merge(EnvAwareProperties other) {
-        return EnvAwareProperties.newBuilder().thenAddProperties(this, other).build();
+        Map<String, String> mine;
+        Map<String, String> theirs;
+        // lock in a fixed order, so a.merge(b) and b.merge(a) can't deadlock
+        int thisHash = System.identityHashCode(this);
+        int otherHash = System.identityHashCode(other);
+        if (thisHash < otherHash) {
+            synchronized (this) {
+                synchronized (other) {
+                    mine = snapshot();
+                    theirs = other.snapshot();
+                }
+            }
+        } else if (thisHash > otherHash) {
+            synchronized (other) {
+                synchronized (this) {
+                    mine = snapshot();
+                    theirs = other.snapshot();
+                }
+            }
+        } else {
+            // different instances can have the same hash, then the tie lock decides who locks first
+            synchronized (TIE_LOCK) {
+                synchronized (this) {
+                    synchronized (other) {
+                        mine = snapshot();
+                        theirs = other.snapshot();
+                    }
+                }
+            }
+        }
+        List<PropertyLayer> sources = new ArrayList<PropertyLayer>(2);
+        sources.add(PropertyLayer.of("this", mine));
+        sources.add(PropertyLayer.of("other", theirs));
+        return new EnvAwareProperties(sources);
     }
+
+    /**
+     * Copy of the values of this, without overlays and not counted as reads. Only call it while holding the lock
+     * of this.
+     */
+    private Map<String, String> snapshot() {
+        Set<String> keys = stringPropertyNames();
+        Map<String, String> result = new HashMap<String, String>(keys.size() * 4 / 3 + 1);
+        for (String key : keys) {
+            result.put(key, peekProperty(key));
+        }
+        return result;
+    }
+
     private static boolean canLoad(String path) {
         File file = new File(path);
         return file.exists() && file.isFile() && file.canRead();
     }
+    /**
+     * Subscribe to changes of a key, or of all keys under a prefix. A keyOrPrefix ending with "." (or empty)
+     * is a prefix, anything else is an exact key. Every write notifies the matching subscribers on the change
+     * executor: put, setProperty, putAll, remove, clear, the compute, merge and replace methods, and removals
+     * through keySet, entrySet and values. Changes that happen while a listener is pending are coalesced into
+     * one call, and calls to the same listener never overlap.
+     *
+     * @param keyOrPrefix The key, or the prefix ending with "."
+     * @param listener The listener
+     * @return The subscription, close it to unsubscribe
+     */
+    public ChangeListener.Subscription subscribe(String keyOrPrefix, ChangeListener listener) {
+        return changeDispatcher().subscribe(keyOrPrefix, listener);
+    }
+
+    /**
+     * Set the executor that calls change listeners. By default a shared pool of daemon threads is used.
+     *
+     * @param executor The executor
+     * @throws NullPointerException if executor is null
+     */
+    public void setChangeExecutor(Executor executor) {
+        changeDispatcher().setExecutor(executor);
+    }
+
+    /**
+     * Set the handler for exceptions thrown by change listeners, and for changes the change executor rejected.
+     * By default they go to the uncaught exception handler of the thread that calls the listener.
+     *
+     * @param handler The handler, or null for the default
+     */
+    public void setChangeErrorHandler(Thread.UncaughtExceptionHandler handler) {
+        changeDispatcher().setErrorHandler(handler);
+    }
+
+    private ChangeDispatcher changeDispatcher() {
+        ChangeDispatcher result = dispatcher;
+        if (result == null) {
+            synchronized (this) {
+                result = dispatcher;
+                if (result == null) {
+                    result = new ChangeDispatcher(this, PropertySources.defaultExecutor());
+                    dispatcher = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bookkeeping of one written entry, called with the lock held after the entry changed. Every write goes
+     * through here, so the key index, change counts and subscribers never miss a change.
+     *
+     * @param key The key
+     * @param old The value before, null if there was none
+     * @param value The value after, null if removed
+     * @param batch Where to collect the changed key, or null to notify subscribers now
+     */
+    private void written(Object key, Object old, Object value, List<String> batch) {
+        if (old == null ? value == null : old.equals(value)) {
+            return;
+        }
+        changeCount++;
+        if (old == null || value == null) {
+            KeyIndex index = keyIndex;
+            if (index != null && key instanceof String) {
+                if (old == null) {
+                    index.add((String) key);
+                } else {
+                    index.remove((String) key);
+                }
+            }
+        }
+        if (!(key instanceof String)) {
+            return;
+        }
+        if (batch != null) {
+            batch.add((String) key);
+            return;
+        }
+        ChangeDispatcher d = dispatcher;
+        if (d != null) {
+            d.changed((String) key);
+        }
+    }
+
+    private void written(List<String> batch) {
+        ChangeDispatcher d = dispatcher;
+        if (d != null && !batch.isEmpty()) {
+            d.changed(batch);
+        }
+    }
+
+    /**
+     * A copy of the values. Subscriptions, the key index, access counters and provenance belong to this instance
+     * and are not shared with the copy.
+     *
+     * @return The copy
+     */
+    @Override
+    public synchronized Object clone() {
+        EnvAwareProperties result = (EnvAwareProperties) super.clone();
+        result.dispatcher = null;
+        result.keyIndex = null;
+        result.accessCounter = null;
+        result.provenance = null;
+        result.changeCount = 0;
+        return result;
+    }
+
+    @Override
+    public synchronized Object put(Object key, Object value) {
+        Object old = super.put(key, value);
+        written(key, old, value, null);
+        return old;
+    }
+
+    @Override
+    public synchronized void putAll(Map<?, ?> t) {
+        List<String> batch = new ArrayList<String>(t.size());
+        for (Map.Entry<?, ?> next : t.entrySet()) {
+            Object old = super.put(next.getKey(), next.getValue());
+            written(next.getKey(), old, next.getValue(), batch);
+        }
+        written(batch);
+    }
+
+    @Override
+    public synchronized Object remove(Object key) {
+        Object old = super.remove(key);
+        written(key, old, null, null);
+        return old;
+    }
+
+    @Override
+    public synchronized boolean remove(Object key, Object value) {
+        boolean result = super.remove(key, value);
+        if (result) {
+            written(key, value, null, null);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Object putIfAbsent(Object key, Object value) {
+        Object old = super.putIfAbsent(key, value);
+        if (old == null) {
+            written(key, null, value, null);
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized Object replace(Object key, Object value) {
+        Object old = super.replace(key, value);
+        if (old != null) {
+            written(key, old, value, null);
+        }
+        return old;
+    }
+
+    @Override
+    public synchronized boolean replace(Object key, Object oldValue, Object newValue) {
+        boolean result = super.replace(key, oldValue, newValue);
+        if (result) {
+            written(key, oldValue, newValue, null);
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized Object computeIfAbsent(Object key, Function<? super Object, ?> mappingFunction) {
+        Object old = super.get(key);
+        Object result = super.computeIfAbsent(key, mappingFunction);
+        written(key, old, result, null);
+        return result;
+    }
+
+    @Override
+    public synchronized Object computeIfPresent(Object key, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+        Object old = super.get(key);
+        Object result = super.computeIfPresent(key, remappingFunction);
+        written(key, old, result, null);
+        return result;
+    }
+
+    @Override
+    public synchronized Object compute(Object key, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+        Object old = super.get(key);
+        Object result = super.compute(key, remappingFunction);
+        written(key, old, result, null);
+        return result;
+    }
+
+    @Override
+    public synchronized Object merge(Object key, Object value, BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+        Object old = super.get(key);
+        Object result = super.merge(key, value, remappingFunction);
+        written(key, old, result, null);
+        return result;
+    }
+
+    @Override
+    public synchronized void replaceAll(BiFunction<? super Object, ? super Object, ?> function) {
+        List<String> batch = new ArrayList<String>();
+        for (Map.Entry<Object, Object> next : new ArrayList<Map.Entry<Object, Object>>(super.entrySet())) {
+            Object key = next.getKey();
+            Object old = super.get(key);
+            Object value = function.apply(key, old);
+            super.put(key, value);
+            written(key, old, value, batch);
+        }
+        written(batch);
+    }
+
+    @Override
+    public synchronized void clear() {
+        List<Map.Entry<Object, Object>> entries = new ArrayList<Map.Entry<Object, Object>>(super.entrySet());
+        super.clear();
+        List<String> batch = new ArrayList<String>(entries.size());
+        for (Map.Entry<Object, Object> next : entries) {
+            written(next.getKey(), next.getValue(), null, batch);
+        }
+        written(batch);
+    }
+
+    /**
+     * Put and remove entries as one write: subscribers get one notification for the whole batch
+     *
+     * @param puts The entries to put
+     * @param removes The keys to remove
+     */
+    synchronized void apply(Map<String, String> puts, Collection<String> removes) {
+        List<String> batch = new ArrayList<String>(puts.size() + removes.size());
+        for (String key : removes) {
+            Object old = super.remove(key);
+            written(key, old, null, batch);
+        }
+        for (Map.Entry<String, String> next : puts.entrySet()) {
+            Object old = super.put(next.getKey(), next.getValue());
+            written(next.getKey(), old, next.getValue(), batch);
+        }
+        written(batch);
+    }
+
+    /**
+     * Live view of the keys. Removing through the view, or its iterator, is a remove of this properties.
+     */
+    @Override
+    public Set<Object> keySet() {
+        return new KeyView();
+    }
+
+    /**
+     * Live view of the entries. Removing through the view, its iterator, or setValue of an entry,
+     * is a write of this properties.
+     */
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return new EntryView();
+    }
+
+    /**
+     * Live view of the values. Removing through the view, or its iterator, is a remove of this properties.
+     */
+    @Override
+    public Collection<Object> values() {
+        return new ValueView();
+    }
+
+    /**
+     * Iterates the entries of the underlying map, removing through this properties
+     */
+    private abstract class ViewIterator<T> implements Iterator<T> {
+        private final Iterator<Map.Entry<Object, Object>> it = EnvAwareProperties.super.entrySet().iterator();
+        private Map.Entry<Object, Object> last;
+
+        abstract T element(Map.Entry<Object, Object> entry);
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public T next() {
+            last = it.next();
+            return element(last);
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            EnvAwareProperties.this.remove(last.getKey(), last.getValue());
+            last = null;
+        }
+    }
+
+    private final class KeyView extends AbstractSet<Object> {
+        @Override
+        public Iterator<Object> iterator() {
+            return new ViewIterator<Object>() {
+                @Override
+                Object element(Map.Entry<Object, Object> entry) {
+                    return entry.getKey();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return EnvAwareProperties.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return EnvAwareProperties.this.remove(o) != null;
+        }
+
+        @Override
+        public void clear() {
+            EnvAwareProperties.this.clear();
+        }
+    }
+
+    private final class EntryView extends AbstractSet<Map.Entry<Object, Object>> {
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+            return new ViewIterator<Map.Entry<Object, Object>>() {
+                @Override
+                Map.Entry<Object, Object> element(Map.Entry<Object, Object> entry) {
+                    return new WriteThroughEntry(entry.getKey(), entry.getValue());
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return EnvAwareProperties.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Object value = e.getKey() == null ? null : get(e.getKey());
+            return value != null && value.equals(e.getValue());
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            return EnvAwareProperties.this.remove(e.getKey(), e.getValue());
+        }
+
+        @Override
+        public void clear() {
+            EnvAwareProperties.this.clear();
+        }
+    }
+
+    private final class WriteThroughEntry extends AbstractMap.SimpleEntry<Object, Object> {
+        private static final long serialVersionUID = 1L;
+
+        WriteThroughEntry(Object key, Object value) {
+            super(key, value);
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            super.setValue(value);
+            return put(getKey(), value);
+        }
+    }
+
+    private final class ValueView extends AbstractCollection<Object> {
+        @Override
+        public Iterator<Object> iterator() {
+            return new ViewIterator<Object>() {
+                @Override
+                Object element(Map.Entry<Object, Object> entry) {
+                    return entry.getValue();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return EnvAwareProperties.this.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        @Override
+        public void clear() {
+            EnvAwareProperties.this.clear();
+        }
+    }
+
+    /**
+     * Same as Properties.getProperty, except that inside callWithOverlay/runWithOverlay the overlay values win.
+     * While access profiling is on, reads of defined keys are counted.
+     *
+     * @param key The key
+     * @return The value
+     */
+    @Override
+    public String getProperty(String key) {
+        String value = ConfigScope.lookup(this, key);
+        if (value == null) {
+            value = super.getProperty(key);
+        }
+        AccessCounter counter = accessCounter;
+        if (counter != null && value != null) {
+            counter.record(key);
+        }
+        return value;
+    }
+
+    /**
+     * Number of changes so far, to find out whether anything changed since an earlier call
+     */
+    int changeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Value of a key for internal copies: no overlay and not counted as a read
+     */
+    String peekProperty(String key) {
+        return super.getProperty(key);
+    }
+
+    /**
+     * Count a read of a defined key made on behalf of this properties, e.g. by a tenant
+     */
+    void countRead(String key) {
+        AccessCounter counter = accessCounter;
+        if (counter != null) {
+            counter.record(key);
+        }
+    }
+
+    /**
+     * Start counting reads of each key, to find hot keys worth caching and dead keys worth deleting.
+     * Reads through getProperty and getPropertyResolve are counted, including the keys placeholders refer to,
+     * and so are reads of base values through a TenantRegistry.
+     * Restarting discards the counts so far.
+     * <p>
+     * Counting costs one LongAdder increment per read. With a sample rate of n, the first read of each key is
+     * always counted, and after that only about one read in n, which keeps very hot read paths cheaper at the
+     * cost of exact counts.
+     *
+     * @param sampleEvery 1 to count every read, n to count about one read in n
+     */
+    public void startAccessProfiling(int sampleEvery) {
+        accessCounter = new AccessCounter(sampleEvery);
+    }
+
+    /**
+     * Stop counting reads and discard the counts
+     */
+    public void stopAccessProfiling() {
+        accessCounter = null;
+    }
+
+    /**
+     * Snapshot of the read counts since access profiling started
+     *
+     * @return The snapshot
+     * @throws IllegalStateException If access profiling is not on
+     */
+    public AccessProfile accessProfile() {
+        AccessCounter counter = accessCounter;
+        if (counter == null) {
+            throw new IllegalStateException("Access profiling is not on");
+        }
+        Set<String> keys;
+        synchronized (this) {
+            keys = stringPropertyNames();
+        }
+        return counter.snapshot(keys);
+    }
+
+    /**
+     * Run a task that sees an overlay on top of this properties. Inside the task, and in threads started by it,
+     * getProperty and getPropertyResolve of this instance return the overlay values first. Nothing is copied, the
+     * overlay is resolved against this and is gone when the task returns. Overlays can be nested.
+     *
+     * @param overlay The overlay values, they may contain placeholders
+     * @param task The task
+     * @param <T> The result type
+     * @return The task result
+     * @throws Exception If the task failed
+     */
+    public <T> T callWithOverlay(Map<String, String> overlay, Callable<T> task) throws Exception {
+        List<PropertyLayer> layers = new ArrayList<PropertyLayer>(2);
+        PropertyLayer raw = PropertyLayer.of("overlay", overlay);
+        layers.add(raw);
+        layers.add(PropertyLayer.view(this));
+        PlaceholderResolver resolver = newResolver(PropertyLayer.stack(layers));
+        Map<String, String> resolved = new HashMap<String, String>(overlay.size() * 4 / 3 + 1);
+        synchronized (this) {
+            for (String key : raw.keys()) {
+                resolved.put(key, resolve(resolver, key, raw.getProperty(key), false));
+            }
+        }
+        return ConfigScope.call(this, resolved, task);
+    }
+
+    /**
+     * Same as callWithOverlay, for tasks without result
+     *
+     * @param overlay The overlay values, they may contain placeholders
+     * @param task The task
+     */
+    public void runWithOverlay(Map<String, String> overlay, Runnable task) {
+        try {
+            callWithOverlay(overlay, Executors.callable(task));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Get property with resolution. By default, the getProperty doesn't work well if your key has
      * ${var} placeholders. If you want to resolve that key as well, use this method instead.
@@ -713,20 +1708,178 @@ public class EnvAwareProperties extends Properties {
      * Get property with resolution. By default, the getProperty doesn't work well if your key has
      * ${var} placeholders. If you want to resolve that key as well, use this method instead.
      *
+     * The lookups are done while holding the lock of this properties, so concurrent updates are never
+     * seen half applied.
+     *
      * @param key          The key to resolve. Key may contain place holders like ${key}
      * @param defaultValue When key is not found, the defaultValue is returned
      * @return The resolved property
      */
     public String getPropertyResolve(String key, String defaultValue) {
-        String keyResolved = resolveEnv(key, this);
-        String valueRaw = this.getProperty(keyResolved);
-        String result = resolveEnv(valueRaw, this);
+        String result;
+        synchronized (this) {
+            PlaceholderResolver resolver = newResolver(PropertyLayer.view(this));
+            String keyResolved = resolve(resolver, key, key, false);
+            String valueRaw = this.getProperty(keyResolved);
+            result = resolve(resolver, keyResolved, valueRaw, false);
+        }
         if (result == null) {
             return defaultValue;
         }
         return result;
     }
 
+    /**
+     * Render a template, e.g. an nginx or log4j config, expanding ${...} placeholders against this properties.
+     * Placeholders work like in values, including fallbacks. The ones that can't be resolved, are too long or are
+     * not closed are copied as is. In strict mode they fail the render with IllegalArgumentException instead.
+     * <p>
+     * The template is streamed with a fixed size buffer, so files of any size can be rendered without
+     * loading them into memory. Lookups use a snapshot taken when the render starts (plus the overlays of the
+     * calling thread), so concurrent updates never block on a long render. Neither in nor out is closed.
+     *
+     * @param in  The template
+     * @param out Where to write the rendered text
+     * @throws IOException If reading or writing failed
+     */
+    public void render(Reader in, Writer out) throws IOException {
+        final PropertyLayer snapshot = PropertyLayer.of("render", this);
+        PropertyLayer lookup = new PropertyLayer("render") {
+            @Override
+            public String getProperty(String key) {
+                String value = ConfigScope.lookup(EnvAwareProperties.this, key);
+                return value != null ? value : snapshot.getProperty(key);
+            }
+
+            @Override
+            public Set<String> keys() {
+                return snapshot.keys();
+            }
+        };
+        new TemplateRenderer(newResolver(lookup), strictResolution).render(in, out);
+    }
+
+    /**
+     * Render a UTF-8 template file into a UTF-8 file. The target is created or replaced.
+     *
+     * @param template The template file
+     * @param target   The file to write
+     * @throws IOException If reading or writing failed
+     */
+    public void render(Path template, Path target) throws IOException {
+        try (Reader in = Files.newBufferedReader(template, StandardCharsets.UTF_8);
+             Writer out = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            render(in, out);
+        }
+    }
+
+    /**
+     * Find all keys that match a pattern, e.g. "*.timeout.ms" or "service.*.endpoint". See KeyQuery for the syntax.
+     * Recently used patterns are compiled once and cached.
+     * <p>
+     * Queries walk an index of the keys by segment, so only the parts of the key space that can match are
+     * visited. The index is built on the first query, and then kept up to date by every write.
+     * Values are the stored values: overlays are not applied, and the scan is not counted as reads by access
+     * profiling.
+     *
+     * @param pattern The pattern
+     * @return The matching keys and their values, sorted by key
+     */
+    public SortedMap<String, String> query(String pattern) {
+        return query(KeyQuery.cached(pattern));
+    }
+
+    /**
+     * Find all keys that match a compiled query
+     *
+     * @param query The query, from KeyQuery.compile
+     * @return The matching keys and their values, sorted by key
+     */
+    public synchronized SortedMap<String, String> query(KeyQuery query) {
+        Set<String> keys = new HashSet<String>();
+        keyIndex().collect(query, keys);
+        SortedMap<String, String> result = new TreeMap<String, String>();
+        for (String key : keys) {
+            String value = peekProperty(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    private KeyIndex keyIndex() {
+        KeyIndex result = keyIndex;
+        if (result == null) {
+            result = new KeyIndex(stringPropertyNames());
+            keyIndex = result;
+        }
+        return result;
+    }
+
+    /**
+     * Whether any key starts with a prefix, e.g. to skip nested config types that have no keys
+     *
+     * @param prefix The prefix, empty or ending with "."
+     * @return true if at least one key is under the prefix
+     */
+    synchronized boolean hasKeysUnder(String prefix) {
+        return keyIndex().hasKeysUnder(prefix);
+    }
+
+    /**
+     * Put a versioned store in front of this properties. Updates made through the store are committed in batches
+     * as immutable versions, and each batch is applied to this properties as one write, with one notification to
+     * subscribers. Plain reads of this properties may still see part of a batch; readers that need a consistent
+     * view pin a version for a whole request, and the last retain versions can be rolled back to.
+     * Updates made directly on this properties are not seen by the store, so make all updates through it.
+     *
+     * @param retain How many versions to keep for rollback
+     * @return The store, starting with the current content of this properties as version 1
+     */
+    public VersionedConfig versioned(int retain) {
+        return new VersionedConfig(this, retain);
+    }
+
+    /**
+     * Use this properties as the shared base of many tenants. Each tenant only stores the keys it overrides,
+     * and tenant values are resolved against this properties when first read. See TenantRegistry.
+     *
+     * @param maxCachedTenants How many tenants keep their resolved values cached
+     * @param maxCachedEntries How many resolved values all cached tenants may hold together
+     * @return The registry, without tenants
+     */
+    public TenantRegistry tenants(int maxCachedTenants, long maxCachedEntries) {
+        return new TenantRegistry(this, maxCachedTenants, maxCachedEntries);
+    }
+
+    /**
+     * Values that could not be resolved during build, because of a cycle or a resolution limit.
+     * Each entry is "key: reason". Always empty in strict mode, since the build fails instead.
+     *
+     * @return The diagnostics
+     */
+    public List<String> getResolutionDiagnostics() {
+        if (diagnostics == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(diagnostics);
+    }
+
+    /**
+     * Explain where a key came from: its source, the line number for file sources, and the keys looked up
+     * while resolving its value. Only available when the builder called enableProvenance().
+     *
+     * @param key The key to explain
+     * @return The explanation, or null if provenance is off or the key was not produced by the build
+     */
+    public Provenance.Explanation explain(String key) {
+        if (provenance == null) {
+            return null;
+        }
+        return provenance.explain(key);
+    }
+
     /**
      * Sample use cases
      *
@@ -771,6 +1924,31 @@ public class EnvAwareProperties extends Properties {
         }
     }
 
+    /**
+     * Bind the keys under a prefix to a config type, e.g. bind("db", DbConfig.class) sets DbConfig.setUrl from "db.url".
+     * The type must be public, and either an interface with getters, or a class with a public no-arg constructor
+     * and public setters or fields. Values are converted to the property types (primitives, wrappers, enums,
+     * BigDecimal, BigInteger, File, Path, URI and String). Nested config types are bound from nested prefixes
+     * that have keys, and are left null otherwise. The accessors of each type are looked up once and cached,
+     * so binding again after a reload is cheap. Interfaces are implemented by a dynamic proxy, and their
+     * default methods work as usual. In a GraalVM native image, config classes must be registered for
+     * reflection, and config interfaces as proxies, by the application.
+     *
+     * @param prefix The prefix. If prefix is not empty and not ending with ".", a "." will be appended.
+     * @param type The config type
+     * @param <T> The config type
+     * @return The bound instance
+     * @throws IllegalArgumentException if a value can't be converted
+     */
+    public <T> T bind(String prefix, Class<T> type) {
+        if (!prefix.isEmpty() && !prefix.endsWith(".")) {
+            prefix = prefix + ".";
+        }
+        synchronized (this) {
+            return ConfigBinder.bind(this, prefix, type);
+        }
+    }
+
     /**
      * Partition this properties with the prefix.
      * Properties that starts with prefix + ".": prefix + "." is removed, and put into result
@@ -783,27 +1961,18 @@ public class EnvAwareProperties extends Properties {
         if(!prefix.endsWith(".")) {
             prefix = prefix + ".";
         }
-        Set<Object> keys = this.keySet();
         Properties result = new Properties();
-        for(Object nextO:keys) {
-            String key = (String)nextO;
-            if(key.startsWith(prefix)) {
-                String newKey = key.substring(prefix.length());
-                String value = this.getProperty(key);
-                result.put(newKey, value);
+        synchronized (this) {
+            Set<Object> keys = this.keySet();
+            for(Object nextO:keys) {
+                String key = (String)nextO;
+                if(key.startsWith(prefix)) {
+                    String newKey = key.substring(prefix.length());
+                    String value = this.peekProperty(key);
+                    result.put(newKey, value);
+                }
             }
         }
         return new EnvAwareProperties(result);
     }
 }
-
-/**
- * When circular reference detected, this exception helps to detect it.
- * However it is not exposed.
- */
-class CircularReferenceException extends Exception {
-    public CircularReferenceException(String msg) {
-        super(msg);
-    }
-}
-
@@ -21,7 +21,7 @@ public class EnvProperties {
             String trimmed = key.substring(prefix.length());
 
             // Handle "__" as "_"
-            trimmed = trimmed.replaceAll("__", "\u0000"); // placeholder
+            trimmed = trimmed.replace("__", "\u0000"); // placeholder
             // Replace single "_" with "."
             trimmed = trimmed.replace('_', '.');
             // Restore "__" to "_"
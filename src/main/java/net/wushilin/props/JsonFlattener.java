@@ -0,0 +1,337 @@
+package net.wushilin.props;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Streams a JSON document into flat properties, without building a tree.
+ * <p>
+ * Object members become dotted keys and array elements get an index, so
+ * {"a": {"b": [{"c": 1}]}} gives a.b[0].c=1. Strings are unescaped, numbers and booleans are kept as written,
+ * and nulls, empty objects and empty arrays produce no key. Only the current key path is held in memory,
+ * so memory use does not depend on the size of the document, except for the values emitted.
+ */
+final class JsonFlattener {
+    private static final int OBJECT = 0;
+    private static final int ARRAY = 1;
+
+    private final Reader in;
+    private final Map<Object, Object> out;
+    private final char[] buf = new char[8192];
+    private int pos;
+    private int limit;
+    private int line = 1;
+    private int column;
+
+    private final StringBuilder path = new StringBuilder();
+    private final StringBuilder token = new StringBuilder();
+    private int depth;
+    private int[] kinds = new int[16];
+    /**
+     * Path length of each open container
+     */
+    private int[] pathLens = new int[16];
+    private int[] indexes = new int[16];
+
+    private JsonFlattener(Reader in, Map<Object, Object> out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Flatten a JSON document
+     * @param in The document, not closed
+     * @param out Where to put the keys
+     * @throws IOException If the document can't be read or is not valid JSON
+     */
+    static void flatten(Reader in, Map<Object, Object> out) throws IOException {
+        new JsonFlattener(in, out).parse();
+    }
+
+    private void parse() throws IOException {
+        int c = nextNonWs();
+        if (c != '{' && c != '[') {
+            throw error("Expected { or [ at the start of the document");
+        }
+        while (true) {
+            // c starts a value at the current path
+            boolean done = false;
+            switch (c) {
+                case '{':
+                    c = nextNonWs();
+                    if (c == '}') {
+                        done = true;
+                    } else {
+                        push(OBJECT);
+                        readKey(c);
+                        c = nextNonWs();
+                        continue;
+                    }
+                    break;
+                case '[':
+                    c = nextNonWs();
+                    if (c == ']') {
+                        done = true;
+                    } else {
+                        push(ARRAY);
+                        path.append("[0]");
+                        continue;
+                    }
+                    break;
+                case '"':
+                    readString();
+                    out.put(path.toString(), token.toString());
+                    done = true;
+                    break;
+                case 't':
+                    expectWord("rue");
+                    out.put(path.toString(), "true");
+                    done = true;
+                    break;
+                case 'f':
+                    expectWord("alse");
+                    out.put(path.toString(), "false");
+                    done = true;
+                    break;
+                case 'n':
+                    expectWord("ull");
+                    done = true;
+                    break;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        readNumber(c);
+                        out.put(path.toString(), token.toString());
+                        done = true;
+                    }
+            }
+            if (!done) {
+                throw error(c < 0 ? "Unexpected end of document" : "Unexpected character '" + (char) c + "'");
+            }
+            c = afterValue();
+            if (c < 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Consume separators and closing brackets after a value
+     * @return The first character of the next value, or -1 at the end of the document
+     */
+    private int afterValue() throws IOException {
+        while (true) {
+            if (depth == 0) {
+                if (nextNonWs() >= 0) {
+                    throw error("Unexpected content after the document");
+                }
+                return -1;
+            }
+            int c = nextNonWs();
+            int top = depth - 1;
+            path.setLength(pathLens[top]);
+            if (kinds[top] == OBJECT) {
+                if (c == ',') {
+                    readKey(nextNonWs());
+                    return nextNonWs();
+                } else if (c != '}') {
+                    throw error("Expected , or }");
+                }
+            } else {
+                if (c == ',') {
+                    path.append('[').append(++indexes[top]).append(']');
+                    return nextNonWs();
+                } else if (c != ']') {
+                    throw error("Expected , or ]");
+                }
+            }
+            depth--;
+        }
+    }
+
+    private void push(int kind) {
+        if (depth == kinds.length) {
+            kinds = Arrays.copyOf(kinds, depth * 2);
+            pathLens = Arrays.copyOf(pathLens, depth * 2);
+            indexes = Arrays.copyOf(indexes, depth * 2);
+        }
+        kinds[depth] = kind;
+        pathLens[depth] = path.length();
+        indexes[depth] = 0;
+        depth++;
+    }
+
+    /**
+     * Read "key" : and append the key to the path
+     */
+    private void readKey(int c) throws IOException {
+        if (c != '"') {
+            throw error("Expected a quoted key");
+        }
+        readString();
+        if (path.length() > 0) {
+            path.append('.');
+        }
+        path.append(token);
+        if (nextNonWs() != ':') {
+            throw error("Expected : after key");
+        }
+    }
+
+    /**
+     * Read a string after the opening quote into token
+     */
+    private void readString() throws IOException {
+        token.setLength(0);
+        while (true) {
+            int c = next();
+            if (c < 0) {
+                throw error("Unterminated string");
+            } else if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                c = next();
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        token.append((char) c);
+                        break;
+                    case 'b':
+                        token.append('\b');
+                        break;
+                    case 'f':
+                        token.append('\f');
+                        break;
+                    case 'n':
+                        token.append('\n');
+                        break;
+                    case 'r':
+                        token.append('\r');
+                        break;
+                    case 't':
+                        token.append('\t');
+                        break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(next(), 16);
+                            if (digit < 0) {
+                                throw error("Invalid \\u escape");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        token.append((char) code);
+                        break;
+                    default:
+                        throw error("Invalid escape");
+                }
+            } else if (c < 0x20) {
+                throw error("Control character in string");
+            } else {
+                token.append((char) c);
+            }
+        }
+    }
+
+    private void readNumber(int first) throws IOException {
+        // -? (0 | [1-9][0-9]*) (.[0-9]+)? ([eE][+-]?[0-9]+)?
+        token.setLength(0);
+        token.append((char) first);
+        int c = first;
+        if (c == '-') {
+            c = next();
+            if (!isDigit(c)) {
+                throw error("Invalid number " + token);
+            }
+            token.append((char) c);
+        }
+        if (c != '0') {
+            digits();
+        }
+        if (peek() == '.') {
+            token.append((char) next());
+            if (!isDigit(peek())) {
+                throw error("Invalid number " + token);
+            }
+            digits();
+        }
+        if (peek() == 'e' || peek() == 'E') {
+            token.append((char) next());
+            if (peek() == '+' || peek() == '-') {
+                token.append((char) next());
+            }
+            if (!isDigit(peek())) {
+                throw error("Invalid number " + token);
+            }
+            digits();
+        }
+        c = peek();
+        if (isDigit(c) || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+            throw error("Invalid number " + token + (char) c);
+        }
+    }
+
+    private void digits() throws IOException {
+        while (isDigit(peek())) {
+            token.append((char) next());
+        }
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void expectWord(String rest) throws IOException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (next() != rest.charAt(i)) {
+                throw error("Invalid literal");
+            }
+        }
+    }
+
+    private int nextNonWs() throws IOException {
+        while (true) {
+            int c = next();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return c;
+            }
+        }
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos];
+    }
+
+    private int next() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        char c = buf[pos++];
+        if (c == '\n') {
+            line++;
+            column = 0;
+        } else {
+            column++;
+        }
+        return c;
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buf);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at line " + line + " column " + column);
+    }
+}
@@ -0,0 +1,162 @@
+package net.wushilin.props;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A trie of keys by "." separated segment, for KeyQuery.
+ * <p>
+ * A query walks the trie segment by segment. Literal segments are a single child lookup, so subtrees that
+ * can't match are never visited.
+ * <p>
+ * The index is kept up to date by the writes of its properties, one key at a time, so a write costs about
+ * as much as the segments of its key. Not thread safe, guarded by the lock of the properties.
+ */
+final class KeyIndex {
+    private static final class Node {
+        Map<String, Node> children;
+        /**
+         * The key ending at this node, or null
+         */
+        String key;
+
+        Node child(String segment) {
+            if (children == null) {
+                children = new HashMap<String, Node>(4);
+            }
+            Node result = children.get(segment);
+            if (result == null) {
+                result = new Node();
+                children.put(segment, result);
+            }
+            return result;
+        }
+    }
+
+    private final Node root = new Node();
+
+    KeyIndex(Set<String> keys) {
+        for (String key : keys) {
+            add(key);
+        }
+    }
+
+    /**
+     * Add a key
+     * @param key The key
+     */
+    void add(String key) {
+        Node node = root;
+        for (String segment : KeyQuery.split(key)) {
+            node = node.child(segment);
+        }
+        node.key = key;
+    }
+
+    /**
+     * Remove a key, and the nodes that lead to no other key
+     * @param key The key
+     */
+    void remove(String key) {
+        remove(root, KeyQuery.split(key), 0, key);
+    }
+
+    /**
+     * @return true if node is now empty and can be dropped by its parent
+     */
+    private static boolean remove(Node node, List<String> segments, int s, String key) {
+        if (s == segments.size()) {
+            if (key.equals(node.key)) {
+                node.key = null;
+            }
+        } else {
+            if (node.children == null) {
+                return false;
+            }
+            Node child = node.children.get(segments.get(s));
+            if (child == null) {
+                return false;
+            }
+            if (remove(child, segments, s + 1, key)) {
+                node.children.remove(segments.get(s));
+                if (node.children.isEmpty()) {
+                    node.children = null;
+                }
+            }
+        }
+        return node.key == null && node.children == null;
+    }
+
+    /**
+     * Whether any key starts with a prefix
+     * @param prefix The prefix, empty or ending with "."
+     * @return true if at least one key is under the prefix
+     */
+    boolean hasKeysUnder(String prefix) {
+        Node node = root;
+        if (!prefix.isEmpty()) {
+            for (String segment : KeyQuery.split(prefix.substring(0, prefix.length() - 1))) {
+                node = node.children == null ? null : node.children.get(segment);
+                if (node == null) {
+                    return false;
+                }
+            }
+        }
+        return node.children != null;
+    }
+
+    /**
+     * Collect all keys that match
+     * @param query The query
+     * @param result Where to add the keys
+     */
+    void collect(KeyQuery query, Set<String> result) {
+        walk(root, query, 0, result);
+    }
+
+    private static void walk(Node node, KeyQuery query, int s, Set<String> result) {
+        if (s == query.kinds.length) {
+            if (node.key != null) {
+                result.add(node.key);
+            }
+            return;
+        }
+        int kind = query.kinds[s];
+        if (kind == KeyQuery.DEEP) {
+            // ** matches nothing here, or one more segment and stays
+            walk(node, query, s + 1, result);
+            if (node.children != null) {
+                for (Node child : node.children.values()) {
+                    walkDeep(child, query, s, result);
+                }
+            }
+            return;
+        }
+        if (node.children == null) {
+            return;
+        }
+        if (kind == KeyQuery.LITERAL) {
+            Node child = node.children.get(query.segments[s]);
+            if (child != null) {
+                walk(child, query, s + 1, result);
+            }
+            return;
+        }
+        for (Map.Entry<String, Node> next : node.children.entrySet()) {
+            if (query.matchesSegment(s, next.getKey())) {
+                walk(next.getValue(), query, s + 1, result);
+            }
+        }
+    }
+
+    private static void walkDeep(Node node, KeyQuery query, int s, Set<String> result) {
+        walk(node, query, s + 1, result);
+        if (node.children != null) {
+            for (Node child : node.children.values()) {
+                walkDeep(child, query, s, result);
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package net.wushilin.props;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compiled key pattern, e.g. "*.timeout.ms" or "service.**.endpoint".
+ * <p>
+ * Patterns are matched one "." separated segment at a time:
+ * <ul>
+ *     <li>"*" matches exactly one segment</li>
+ *     <li>"**" matches any number of segments, including none</li>
+ *     <li>A segment with "*" or "?" in it, like "time*", matches one segment, with "*" matching any characters
+ *     and "?" matching one character</li>
+ *     <li>Any other segment matches itself</li>
+ * </ul>
+ * Compile a pattern once and pass it to EnvAwareProperties.query to reuse it. No regex is involved.
+ */
+public final class KeyQuery {
+    static final int LITERAL = 0;
+    static final int ANY = 1;
+    static final int DEEP = 2;
+    static final int GLOB = 3;
+
+    private static final int MAX_CACHED = 1024;
+    private static final Map<String, KeyQuery> CACHE = new ConcurrentHashMap<String, KeyQuery>();
+
+    private final String pattern;
+    final String[] segments;
+    final int[] kinds;
+
+    private KeyQuery(String pattern) {
+        this.pattern = pattern;
+        List<String> parts = split(pattern);
+        List<String> segs = new ArrayList<String>(parts.size());
+        List<Integer> types = new ArrayList<Integer>(parts.size());
+        for (String next : parts) {
+            int kind;
+            if (next.equals("**")) {
+                kind = DEEP;
+                if (!types.isEmpty() && types.get(types.size() - 1) == DEEP) {
+                    // a.**.**.b is the same as a.**.b
+                    continue;
+                }
+            } else if (next.equals("*")) {
+                kind = ANY;
+            } else if (next.indexOf('*') >= 0 || next.indexOf('?') >= 0) {
+                kind = GLOB;
+            } else {
+                kind = LITERAL;
+            }
+            segs.add(next);
+            types.add(kind);
+        }
+        this.segments = segs.toArray(new String[0]);
+        this.kinds = new int[types.size()];
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = types.get(i);
+        }
+    }
+
+    /**
+     * Compile a pattern
+     * @param pattern The pattern
+     * @return The compiled query
+     */
+    public static KeyQuery compile(String pattern) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("Pattern can't be null");
+        }
+        return new KeyQuery(pattern);
+    }
+
+    /**
+     * Compile a pattern, reusing a recently compiled one
+     */
+    static KeyQuery cached(String pattern) {
+        KeyQuery result = CACHE.get(pattern);
+        if (result == null) {
+            result = compile(pattern);
+            if (CACHE.size() >= MAX_CACHED) {
+                CACHE.clear();
+            }
+            CACHE.put(pattern, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get the pattern this query was compiled from
+     * @return The pattern
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Test a single key
+     * @param key The key
+     * @return true if the key matches
+     */
+    public boolean matches(String key) {
+        List<String> parts = split(key);
+        return matches(parts.toArray(new String[0]), 0, 0);
+    }
+
+    private boolean matches(String[] parts, int p, int s) {
+        while (s < segments.length) {
+            if (kinds[s] == DEEP) {
+                for (int i = p; i <= parts.length; i++) {
+                    if (matches(parts, i, s + 1)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (p == parts.length || !matchesSegment(s, parts[p])) {
+                return false;
+            }
+            p++;
+            s++;
+        }
+        return p == parts.length;
+    }
+
+    /**
+     * Test one key segment against pattern segment s, which is not DEEP
+     */
+    boolean matchesSegment(int s, String part) {
+        switch (kinds[s]) {
+            case ANY:
+                return true;
+            case GLOB:
+                return glob(segments[s], part);
+            default:
+                return segments[s].equals(part);
+        }
+    }
+
+    /**
+     * "*" and "?" matching within a segment, with backtracking on the last "*" only
+     */
+    private static boolean glob(String pattern, String text) {
+        int p = 0;
+        int t = 0;
+        int star = -1;
+        int mark = 0;
+        while (t < text.length()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == text.charAt(t))) {
+                p++;
+                t++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = p++;
+                mark = t;
+            } else if (star >= 0) {
+                p = star + 1;
+                t = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    /**
+     * Split on ".", keeping empty segments
+     */
+    static List<String> split(String key) {
+        List<String> result = new ArrayList<String>(8);
+        int start = 0;
+        int dot;
+        while ((dot = key.indexOf('.', start)) >= 0) {
+            result.add(key.substring(start, dot));
+            start = dot + 1;
+        }
+        result.add(key.substring(start));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyQuery[" + pattern + "]";
+    }
+}
@@ -0,0 +1,327 @@
+package net.wushilin.props;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable String to String map with structural sharing, for VersionedConfig.
+ * <p>
+ * It is a hash array mapped trie: each level uses 5 bits of the key hash to pick a slot, and only the slots
+ * that are used are stored. put and remove copy the path from the root to the key, at most 7 small arrays,
+ * and share everything else with the map they came from. So a new version costs about as much as the keys
+ * it changes, whatever the size of the map, and two versions can be compared by skipping the subtrees they
+ * share.
+ */
+final class PersistentMap {
+    static final PersistentMap EMPTY = new PersistentMap(new Branch(0, new Object[0]), 0);
+
+    private static final class Leaf {
+        final int hash;
+        final String key;
+        final String value;
+
+        Leaf(int hash, String key, String value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Keys whose hashes are equal
+     */
+    private static final class Collision {
+        final int hash;
+        final Leaf[] leaves;
+
+        Collision(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+
+    /**
+     * Slots are Leaf, Collision or Branch, in the order of their bits in bitmap
+     */
+    private static final class Branch {
+        final int bitmap;
+        final Object[] slots;
+
+        Branch(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+    }
+
+    private final Branch root;
+    private final int size;
+
+    private PersistentMap(Branch root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Number of keys
+     * @return The size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Lookup a key
+     * @param key The key
+     * @return The value, or null
+     */
+    String get(String key) {
+        int hash = hash(key);
+        Object slot = root;
+        int shift = 0;
+        while (true) {
+            if (slot instanceof Branch) {
+                Branch b = (Branch) slot;
+                int bit = bit(hash, shift);
+                if ((b.bitmap & bit) == 0) {
+                    return null;
+                }
+                slot = b.slots[index(b.bitmap, bit)];
+                shift += 5;
+            } else if (slot instanceof Leaf) {
+                Leaf l = (Leaf) slot;
+                return l.key.equals(key) ? l.value : null;
+            } else {
+                Collision c = (Collision) slot;
+                for (Leaf l : c.leaves) {
+                    if (l.key.equals(key)) {
+                        return l.value;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Map with a key set
+     * @param key The key
+     * @param value The value
+     * @return The new map, or this if the key already had the value
+     */
+    PersistentMap put(String key, String value) {
+        int[] added = new int[1];
+        Branch result = put(root, 0, new Leaf(hash(key), key, value), added);
+        return result == root ? this : new PersistentMap(result, size + added[0]);
+    }
+
+    /**
+     * Map without a key
+     * @param key The key
+     * @return The new map, or this if the key was not there
+     */
+    PersistentMap remove(String key) {
+        Branch result = remove(root, 0, hash(key), key);
+        return result == root ? this : new PersistentMap(result, size - 1);
+    }
+
+    /**
+     * Copy all keys and values
+     * @param out Where to put them
+     */
+    void copyTo(Map<String, String> out) {
+        collect(root, out);
+    }
+
+    /**
+     * Copy all keys
+     * @param out Where to add them
+     */
+    void keysTo(Collection<String> out) {
+        Map<String, String> all = new HashMap<String, String>(size * 4 / 3 + 1);
+        collect(root, all);
+        out.addAll(all.keySet());
+    }
+
+    /**
+     * Find the changes that turn one map into another. Subtrees shared by both maps are skipped.
+     * @param from The map before
+     * @param to The map after
+     * @param removed Value to put for keys that are in from but not in to
+     * @param out Where to put the changed keys and their values in to
+     */
+    static void diff(PersistentMap from, PersistentMap to, String removed, Map<String, String> out) {
+        diff(from.root, to.root, removed, out);
+    }
+
+    private static void diff(Object a, Object b, String removed, Map<String, String> out) {
+        if (a == b) {
+            return;
+        }
+        if (a instanceof Branch && b instanceof Branch) {
+            Branch ba = (Branch) a;
+            Branch bb = (Branch) b;
+            int all = ba.bitmap | bb.bitmap;
+            while (all != 0) {
+                int bit = Integer.lowestOneBit(all);
+                all &= ~bit;
+                Object sa = (ba.bitmap & bit) == 0 ? null : ba.slots[index(ba.bitmap, bit)];
+                Object sb = (bb.bitmap & bit) == 0 ? null : bb.slots[index(bb.bitmap, bit)];
+                diff(sa, sb, removed, out);
+            }
+            return;
+        }
+        Map<String, String> before = new HashMap<String, String>();
+        Map<String, String> after = new HashMap<String, String>();
+        collect(a, before);
+        collect(b, after);
+        for (Map.Entry<String, String> next : after.entrySet()) {
+            if (!next.getValue().equals(before.get(next.getKey()))) {
+                out.put(next.getKey(), next.getValue());
+            }
+        }
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                out.put(key, removed);
+            }
+        }
+    }
+
+    private static void collect(Object slot, Map<String, String> out) {
+        if (slot instanceof Branch) {
+            for (Object next : ((Branch) slot).slots) {
+                collect(next, out);
+            }
+        } else if (slot instanceof Leaf) {
+            out.put(((Leaf) slot).key, ((Leaf) slot).value);
+        } else if (slot instanceof Collision) {
+            for (Leaf l : ((Collision) slot).leaves) {
+                out.put(l.key, l.value);
+            }
+        }
+    }
+
+    private static Branch put(Branch b, int shift, Leaf leaf, int[] added) {
+        int bit = bit(leaf.hash, shift);
+        int idx = index(b.bitmap, bit);
+        if ((b.bitmap & bit) == 0) {
+            Object[] slots = new Object[b.slots.length + 1];
+            System.arraycopy(b.slots, 0, slots, 0, idx);
+            slots[idx] = leaf;
+            System.arraycopy(b.slots, idx, slots, idx + 1, b.slots.length - idx);
+            added[0] = 1;
+            return new Branch(b.bitmap | bit, slots);
+        }
+        Object current = b.slots[idx];
+        Object next = putSlot(current, shift + 5, leaf, added);
+        if (next == current) {
+            return b;
+        }
+        Object[] slots = b.slots.clone();
+        slots[idx] = next;
+        return new Branch(b.bitmap, slots);
+    }
+
+    private static Object putSlot(Object current, int shift, Leaf leaf, int[] added) {
+        if (current instanceof Branch) {
+            return put((Branch) current, shift, leaf, added);
+        }
+        if (current instanceof Leaf) {
+            Leaf l = (Leaf) current;
+            if (l.key.equals(leaf.key)) {
+                return l.value.equals(leaf.value) ? l : leaf;
+            }
+            if (l.hash == leaf.hash) {
+                added[0] = 1;
+                return new Collision(l.hash, new Leaf[]{l, leaf});
+            }
+            Branch split = put(new Branch(0, new Object[0]), shift, l, new int[1]);
+            return put(split, shift, leaf, added);
+        }
+        Collision c = (Collision) current;
+        if (c.hash != leaf.hash) {
+            Branch split = new Branch(bit(c.hash, shift), new Object[]{c});
+            return put(split, shift, leaf, added);
+        }
+        for (int i = 0; i < c.leaves.length; i++) {
+            if (c.leaves[i].key.equals(leaf.key)) {
+                if (c.leaves[i].value.equals(leaf.value)) {
+                    return c;
+                }
+                Leaf[] leaves = c.leaves.clone();
+                leaves[i] = leaf;
+                return new Collision(c.hash, leaves);
+            }
+        }
+        Leaf[] leaves = new Leaf[c.leaves.length + 1];
+        System.arraycopy(c.leaves, 0, leaves, 0, c.leaves.length);
+        leaves[c.leaves.length] = leaf;
+        added[0] = 1;
+        return new Collision(c.hash, leaves);
+    }
+
+    private static Branch remove(Branch b, int shift, int hash, String key) {
+        int bit = bit(hash, shift);
+        if ((b.bitmap & bit) == 0) {
+            return b;
+        }
+        int idx = index(b.bitmap, bit);
+        Object current = b.slots[idx];
+        Object next;
+        if (current instanceof Leaf) {
+            next = ((Leaf) current).key.equals(key) ? null : current;
+        } else if (current instanceof Collision) {
+            next = remove((Collision) current, key);
+        } else {
+            Branch child = remove((Branch) current, shift + 5, hash, key);
+            if (child.slots.length == 0) {
+                next = null;
+            } else if (child.slots.length == 1 && !(child.slots[0] instanceof Branch)) {
+                // a single leaf or collision moves up
+                next = child.slots[0];
+            } else {
+                next = child;
+            }
+        }
+        if (next == current) {
+            return b;
+        }
+        if (next != null) {
+            Object[] slots = b.slots.clone();
+            slots[idx] = next;
+            return new Branch(b.bitmap, slots);
+        }
+        Object[] slots = new Object[b.slots.length - 1];
+        System.arraycopy(b.slots, 0, slots, 0, idx);
+        System.arraycopy(b.slots, idx + 1, slots, idx, slots.length - idx);
+        return new Branch(b.bitmap & ~bit, slots);
+    }
+
+    private static Object remove(Collision c, String key) {
+        for (int i = 0; i < c.leaves.length; i++) {
+            if (c.leaves[i].key.equals(key)) {
+                if (c.leaves.length == 2) {
+                    return c.leaves[1 - i];
+                }
+                Leaf[] leaves = new Leaf[c.leaves.length - 1];
+                System.arraycopy(c.leaves, 0, leaves, 0, i);
+                System.arraycopy(c.leaves, i + 1, leaves, i, leaves.length - i);
+                return new Collision(c.hash, leaves);
+            }
+        }
+        return c;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+}
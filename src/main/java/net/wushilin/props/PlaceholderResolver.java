@@ -0,0 +1,243 @@
+package net.wushilin.props;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Expands ${key} placeholders in a single left to right scan, without regex and without recursion.
+ * <p>
+ * Nested placeholders like ${${key}} are resolved inside out. ${key:-default} falls back to the default
+ * when the key is missing or empty, and ${key:?message} fails the same way a cycle does. Fallbacks are
+ * only evaluated when they are used, and may contain placeholders, including more fallbacks.
+ * <p>
+ * When a placeholder refers to a key that has placeholders itself, its value is expanded on an explicit
+ * stack, so cycles are detected exactly instead of by running into a depth limit, and every expansion is
+ * counted against the limits:
+ * <ul>
+ *     <li>maxDepth: how many keys may be nested inside each other</li>
+ *     <li>maxLength: the longest value an expansion may produce</li>
+ *     <li>maxExpansions: how many placeholders may be substituted during the life of this resolver</li>
+ * </ul>
+ * A resolver is not thread safe. Create one per build, or per call.
+ */
+class PlaceholderResolver {
+    private final PropertyLayer lookup;
+    private final int maxDepth;
+    private final int maxLength;
+    private final long maxExpansions;
+    private long expansions;
+
+    /**
+     * Values already expanded during the current resolve call
+     */
+    private final Map<String, String> memo = new HashMap<String, String>();
+    /**
+     * Keys being expanded, to detect cycles
+     */
+    private final Set<String> inProgress = new HashSet<String>();
+
+    PlaceholderResolver(PropertyLayer lookup, int maxDepth, int maxLength, long maxExpansions) {
+        this.lookup = lookup;
+        this.maxDepth = maxDepth;
+        this.maxLength = maxLength;
+        this.maxExpansions = maxExpansions;
+    }
+
+    /**
+     * Expansion state of one value
+     */
+    private static class Frame {
+        final String key;
+        final String input;
+        final StringBuilder out;
+        int pos;
+        /**
+         * Output positions of the open placeholders
+         */
+        int[] marks = new int[4];
+        /**
+         * 0 for a plain placeholder, or the length of "${name:-" when its default is being evaluated
+         */
+        int[] kinds = new int[4];
+        int markCount;
+
+        Frame(String key, String input) {
+            this.key = key;
+            this.input = input;
+            this.out = new StringBuilder(input.length() + 16);
+        }
+    }
+
+    /**
+     * Start counting maxExpansions from zero again, e.g. between independent values of one template
+     */
+    void resetExpansions() {
+        expansions = 0;
+    }
+
+    /**
+     * Expand all placeholders that can be resolved. Placeholders that can't be resolved are kept as is.
+     * @param raw The raw string
+     * @return The expanded string
+     * @throws ResolutionException On a cycle, or when a limit is exceeded
+     */
+    String resolve(String raw) throws ResolutionException {
+        if (raw == null) {
+            return null;
+        }
+        if (raw.indexOf("${") < 0) {
+            return raw;
+        }
+        memo.clear();
+        inProgress.clear();
+        List<Frame> stack = new ArrayList<Frame>();
+        stack.add(new Frame(null, raw));
+        while (true) {
+            Frame f = stack.get(stack.size() - 1);
+            if (f.pos >= f.input.length()) {
+                stack.remove(stack.size() - 1);
+                String result = f.out.toString();
+                if (f.key == null) {
+                    return result;
+                }
+                inProgress.remove(f.key);
+                memo.put(f.key, result);
+                append(stack.get(stack.size() - 1), result);
+                continue;
+            }
+            char c = f.input.charAt(f.pos);
+            if (c == '$' && f.pos + 1 < f.input.length() && f.input.charAt(f.pos + 1) == '{') {
+                if (f.markCount == f.marks.length) {
+                    f.marks = Arrays.copyOf(f.marks, f.markCount * 2);
+                    f.kinds = Arrays.copyOf(f.kinds, f.markCount * 2);
+                }
+                f.marks[f.markCount] = f.out.length();
+                f.kinds[f.markCount] = 0;
+                f.markCount++;
+                append(f, "${");
+                f.pos += 2;
+                continue;
+            }
+            if (c == ':' && f.markCount > 0 && f.kinds[f.markCount - 1] == 0 && f.pos + 1 < f.input.length()) {
+                char op = f.input.charAt(f.pos + 1);
+                int mark = f.marks[f.markCount - 1];
+                String name = op == '-' || op == '?' ? f.out.substring(mark + 2) : null;
+                int close = name != null && isValidName(name) ? findClose(f.input, f.pos + 2) : -1;
+                if (close >= 0) {
+                    String value = lookup.getProperty(name);
+                    if (value != null && !value.isEmpty()) {
+                        // skip the fallback, it is never evaluated
+                        f.markCount--;
+                        f.pos = close + 1;
+                        f.out.setLength(mark);
+                        expand(stack, f, name, value);
+                        continue;
+                    }
+                    if (op == '?') {
+                        throw new ResolutionException(name + ": " + f.input.substring(f.pos + 2, close));
+                    }
+                    // evaluate the default in place, "${name:-" is dropped when the placeholder closes
+                    f.kinds[f.markCount - 1] = name.length() + 4;
+                    append(f, ":-");
+                    f.pos += 2;
+                    continue;
+                }
+            }
+            f.pos++;
+            if (c == '}' && f.markCount > 0) {
+                f.markCount--;
+                int mark = f.marks[f.markCount];
+                if (f.kinds[f.markCount] > 0) {
+                    f.out.delete(mark, mark + f.kinds[f.markCount]);
+                    continue;
+                }
+                String name = f.out.substring(mark + 2);
+                String value = isValidName(name) ? lookup.getProperty(name) : null;
+                if (value != null) {
+                    f.out.setLength(mark);
+                    expand(stack, f, name, value);
+                    continue;
+                }
+            }
+            if (f.out.length() >= maxLength) {
+                throw new ResolutionException("Expanded value longer than " + maxLength);
+            }
+            f.out.append(c);
+        }
+    }
+
+    /**
+     * Substitute a placeholder with the expanded value of a key, either from the memo or by pushing a new frame
+     */
+    private void expand(List<Frame> stack, Frame f, String name, String value) throws ResolutionException {
+        if (++expansions > maxExpansions) {
+            throw new ResolutionException("More than " + maxExpansions + " placeholder expansions");
+        }
+        String cached = memo.get(name);
+        if (cached != null) {
+            append(f, cached);
+            return;
+        }
+        if (inProgress.contains(name)) {
+            throw new ResolutionException("Circular reference to " + name);
+        }
+        if (stack.size() > maxDepth) {
+            throw new ResolutionException("Placeholders nested deeper than " + maxDepth);
+        }
+        inProgress.add(name);
+        stack.add(new Frame(name, value));
+    }
+
+    /**
+     * Find the } that closes the placeholder whose fallback starts at from, skipping nested placeholders
+     * @return The index, or -1 if the placeholder is not closed
+     */
+    private static int findClose(String input, int from) {
+        int depth = 0;
+        for (int i = from; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '$' && i + 1 < input.length() && input.charAt(i + 1) == '{') {
+                depth++;
+                i++;
+            } else if (c == '}') {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    private void append(Frame f, String s) throws ResolutionException {
+        if (f.out.length() + s.length() > maxLength) {
+            throw new ResolutionException("Expanded value longer than " + maxLength);
+        }
+        f.out.append(s);
+    }
+
+    /**
+     * Placeholder names are limited to [a-zA-Z0-9-_.\[\]]+, brackets are used by flattened JSON and YAML keys
+     * @param name The name
+     * @return true if valid
+     */
+    static boolean isValidName(String name) {
+        int len = name.length();
+        if (len == 0) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            char c = name.charAt(i);
+            if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '[' || c == ']')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
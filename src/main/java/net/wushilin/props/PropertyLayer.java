@@ -0,0 +1,267 @@
+package net.wushilin.props;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable, shareable source of raw (unresolved) property values.
+ * <p>
+ * EnvAwareProperties resolves placeholders against a stack of layers. User supplied layers are
+ * snapshotted once when they are added, while the process wide layers (system environment,
+ * system properties) are singletons that are never copied, so building many EnvAwareProperties
+ * only costs as much as their own keys.
+ */
+public abstract class PropertyLayer {
+    /**
+     * Name of this layer, used for diagnostics
+     */
+    private final String name;
+
+    /**
+     * Create a layer with a name
+     * @param name The name of the layer
+     */
+    protected PropertyLayer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the name of this layer
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Lookup a raw value
+     * @param key The key to lookup
+     * @return The raw value, or null if this layer does not define the key
+     */
+    public abstract String getProperty(String key);
+
+    /**
+     * Keys defined by this layer. Live layers (system environment, system properties) are lookup only,
+     * and return an empty set here, because they are never enumerated during resolution.
+     * @return Unmodifiable set of keys
+     */
+    public abstract Set<String> keys();
+
+    @Override
+    public String toString() {
+        return "PropertyLayer[" + name + "]";
+    }
+
+    /**
+     * Snapshot a properties object into an immutable layer. Only String to String entries are kept.
+     * The copy is taken while holding the lock of p, so it never sees half of a concurrent update.
+     * @param name The name of the layer
+     * @param p The properties to copy
+     * @return The layer
+     */
+    public static PropertyLayer of(String name, Properties p) {
+        Map<String, String> copy;
+        synchronized (p) {
+            copy = new HashMap<String, String>(p.size() * 4 / 3 + 1);
+            for (Map.Entry<Object, Object> next : p.entrySet()) {
+                Object ko = next.getKey();
+                Object vo = next.getValue();
+                if (ko instanceof String && vo instanceof String) {
+                    copy.put((String) ko, (String) vo);
+                }
+            }
+        }
+        return new MapLayer(name, copy);
+    }
+
+    /**
+     * Snapshot a map into an immutable layer.
+     * @param name The name of the layer
+     * @param m The map to copy
+     * @return The layer
+     */
+    public static PropertyLayer of(String name, Map<String, String> m) {
+        return new MapLayer(name, new HashMap<String, String>(m));
+    }
+
+    /**
+     * The process wide system environment layer. The environment can't change after JVM start,
+     * so the map returned by System.getenv() is captured once and shared by every instance.
+     * @return The shared environment layer
+     */
+    public static PropertyLayer environment() {
+        return Shared.ENVIRONMENT;
+    }
+
+    /**
+     * The process wide system properties layer. It is a live view of System.getProperties(),
+     * so it is never copied, and -D or System.setProperty changes are still seen by later builds.
+     * @return The shared system properties layer
+     */
+    public static PropertyLayer systemProperties() {
+        return Shared.SYSTEM_PROPERTIES;
+    }
+
+    /**
+     * Load a .jproperties style file as a layer. Layers are cached by absolute path, and reused
+     * as long as the file size and modification time stay the same.
+     * Missing, empty or unreadable files give an empty layer.
+     * @param file The file to load
+     * @return The layer
+     */
+    public static PropertyLayer fromOptionalFile(File file) {
+        String path = file.getAbsolutePath();
+        if (!(file.isFile() && file.canRead() && file.length() > 0)) {
+            FILE_CACHE.remove(path);
+            return new MapLayer(path, Collections.<String, String>emptyMap());
+        }
+        long length = file.length();
+        long modified = file.lastModified();
+        FileLayer cached = FILE_CACHE.get(path);
+        if (cached != null && cached.length == length && cached.modified == modified) {
+            return cached;
+        }
+        Properties prop = new Properties();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            prop.load(fis);
+        } catch (IOException e) {
+        }
+        Map<String, String> copy = new HashMap<String, String>();
+        for (String key : prop.stringPropertyNames()) {
+            copy.put(key, prop.getProperty(key));
+        }
+        FileLayer result = new FileLayer(path, copy, length, modified);
+        FILE_CACHE.put(path, result);
+        return result;
+    }
+
+    /**
+     * Stack multiple layers. The first layer that defines a key wins.
+     * @param layers The layers in order of priority
+     * @return The stacked layer
+     */
+    public static PropertyLayer stack(List<PropertyLayer> layers) {
+        return new StackLayer(layers.toArray(new PropertyLayer[0]));
+    }
+
+    /**
+     * A live, read only view of a Properties object. Not copied, so only use for short lived lookups.
+     * @param p The properties to view
+     * @return The view
+     */
+    static PropertyLayer view(Properties p) {
+        return new PropertiesView(p);
+    }
+
+    /**
+     * Cache of .jproperties files
+     */
+    private static final Map<String, FileLayer> FILE_CACHE = new ConcurrentHashMap<String, FileLayer>();
+
+    /**
+     * Holder of the shared layers, initialized on first use
+     */
+    private static class Shared {
+        static final PropertyLayer ENVIRONMENT = new MapLayer("environment", System.getenv());
+        static final PropertyLayer SYSTEM_PROPERTIES = new SystemPropertiesLayer();
+    }
+
+    private static class MapLayer extends PropertyLayer {
+        private final Map<String, String> values;
+        private final Set<String> keys;
+
+        MapLayer(String name, Map<String, String> values) {
+            super(name);
+            this.values = values;
+            this.keys = Collections.unmodifiableSet(values.keySet());
+        }
+
+        @Override
+        public String getProperty(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public Set<String> keys() {
+            return keys;
+        }
+    }
+
+    private static class FileLayer extends MapLayer {
+        private final long length;
+        private final long modified;
+
+        FileLayer(String name, Map<String, String> values, long length, long modified) {
+            super(name, values);
+            this.length = length;
+            this.modified = modified;
+        }
+    }
+
+    private static class SystemPropertiesLayer extends PropertyLayer {
+        SystemPropertiesLayer() {
+            super("system properties");
+        }
+
+        @Override
+        public String getProperty(String key) {
+            return System.getProperty(key);
+        }
+
+        @Override
+        public Set<String> keys() {
+            return Collections.emptySet();
+        }
+    }
+
+    private static class PropertiesView extends PropertyLayer {
+        private final Properties p;
+
+        PropertiesView(Properties p) {
+            super("view");
+            this.p = p;
+        }
+
+        @Override
+        public String getProperty(String key) {
+            return p.getProperty(key);
+        }
+
+        @Override
+        public Set<String> keys() {
+            return Collections.unmodifiableSet(p.stringPropertyNames());
+        }
+    }
+
+    private static class StackLayer extends PropertyLayer {
+        private final PropertyLayer[] layers;
+
+        StackLayer(PropertyLayer[] layers) {
+            super("stack");
+            this.layers = layers;
+        }
+
+        @Override
+        public String getProperty(String key) {
+            for (PropertyLayer next : layers) {
+                String value = next.getProperty(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Set<String> keys() {
+            Set<String> result = new LinkedHashSet<String>();
+            for (PropertyLayer next : layers) {
+                result.addAll(next.keys());
+            }
+            return Collections.unmodifiableSet(result);
+        }
+    }
+}
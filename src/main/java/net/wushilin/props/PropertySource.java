@@ -0,0 +1,28 @@
+package net.wushilin.props;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A source of properties for the builder. All sources of a build are asked to load at the same time,
+ * and the results are layered in the order the sources were added, so slow remote sources are fetched
+ * in parallel instead of one after the other.
+ * <p>
+ * See PropertySources for the built in implementations.
+ */
+public interface PropertySource {
+    /**
+     * Name of the source, used in error messages and provenance
+     * @return The name
+     */
+    String getName();
+
+    /**
+     * Start loading. Sources that are already in memory may return a completed future,
+     * sources doing I/O should run it on the executor.
+     * @param executor Executor for blocking work
+     * @return The future properties. The returned Properties must not be modified afterwards.
+     */
+    CompletableFuture<Properties> load(Executor executor);
+}
@@ -0,0 +1,547 @@
+package net.wushilin.props;
+
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Built in PropertySource implementations.
+ */
+public final class PropertySources {
+    private PropertySources() {
+    }
+
+    /**
+     * Adapt a builder target (InputStream, Reader, File, Properties, Map, classpath String or PropertySource)
+     * to a PropertySource.
+     * @param target The target
+     * @return The source
+     */
+    public static PropertySource of(Object target) {
+        return of(target, false);
+    }
+
+    /**
+     * Adapt a builder target to a PropertySource
+     * @param target The target
+     * @param lines Whether or not sources in properties format record the line number of each key,
+     *              see Provenance.lines
+     * @return The source
+     */
+    static PropertySource of(Object target, boolean lines) {
+        if (target instanceof PropertySource) {
+            return (PropertySource) target;
+        } else if (target instanceof InputStream) {
+            return inputStream((InputStream) target, lines);
+        } else if (target instanceof Reader) {
+            return reader((Reader) target, lines);
+        } else if (target instanceof File) {
+            return file((File) target, lines);
+        } else if (target instanceof Properties) {
+            return properties((Properties) target);
+        } else if (target instanceof Map) {
+            return map((Map<?, ?>) target);
+        } else if (target instanceof String) {
+            return classpath((String) target, lines);
+        } else {
+            throw new IllegalArgumentException("Not sure how to deal with target of type " + target.getClass());
+        }
+    }
+
+    /**
+     * Properties already in memory
+     * @param p The properties
+     * @return The source
+     */
+    public static PropertySource properties(final Properties p) {
+        return new ImmediateSource("Properties") {
+            @Override
+            Properties loadNow() {
+                return p;
+            }
+        };
+    }
+
+    /**
+     * A String to String map already in memory
+     * @param m The map
+     * @return The source
+     */
+    public static PropertySource map(final Map<?, ?> m) {
+        return new ImmediateSource("Map") {
+            @Override
+            Properties loadNow() {
+                Properties p = new Properties();
+                Set<? extends Map.Entry<?, ?>> entries = m.entrySet();
+                for (Map.Entry<?, ?> nextEntry : entries) {
+                    Object ko = nextEntry.getKey();
+                    Object vo = nextEntry.getValue();
+                    if (!(ko instanceof String) || !(vo instanceof String)) {
+                        throw new IllegalArgumentException("Map must be string -> string. Found " + ko.getClass() + " -> " + vo.getClass());
+                    }
+                    p.put(ko, vo);
+                }
+                return p;
+            }
+        };
+    }
+
+    /**
+     * An input stream in properties format. The stream is not closed.
+     * @param istream The stream
+     * @return The source
+     */
+    public static PropertySource inputStream(final InputStream istream) {
+        return inputStream(istream, false);
+    }
+
+    private static PropertySource inputStream(final InputStream istream, final boolean lines) {
+        return new BlockingSource("InputStream") {
+            @Override
+            Properties loadNow() throws IOException {
+                return loadProperties(istream, lines);
+            }
+        };
+    }
+
+    /**
+     * A reader in properties format. The reader is not closed.
+     * @param reader The reader
+     * @return The source
+     */
+    public static PropertySource reader(final Reader reader) {
+        return reader(reader, false);
+    }
+
+    private static PropertySource reader(final Reader reader, final boolean lines) {
+        return new BlockingSource("Reader") {
+            @Override
+            Properties loadNow() throws IOException {
+                if (lines) {
+                    return Provenance.load(reader);
+                }
+                Properties p = new Properties();
+                p.load(reader);
+                return p;
+            }
+        };
+    }
+
+    /**
+     * A local properties file
+     * @param file The file
+     * @return The source
+     */
+    public static PropertySource file(final File file) {
+        return file(file, false);
+    }
+
+    private static PropertySource file(final File file, final boolean lines) {
+        return new BlockingSource(file.getPath()) {
+            @Override
+            Properties loadNow() throws IOException {
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    return loadProperties(fis, lines);
+                }
+            }
+        };
+    }
+
+    /**
+     * A properties resource on the classpath, relative to the EnvAwareProperties class
+     * @param path The resource path
+     * @return The source
+     */
+    public static PropertySource classpath(final String path) {
+        return classpath(path, false);
+    }
+
+    private static PropertySource classpath(final String path, final boolean lines) {
+        return new BlockingSource("classpath:" + path) {
+            @Override
+            Properties loadNow() throws IOException {
+                try (InputStream istream = EnvAwareProperties.class.getResourceAsStream(path)) {
+                    if (istream == null) {
+                        throw new FileNotFoundException("Classpath resource not found: " + path);
+                    }
+                    return loadProperties(istream, lines);
+                }
+            }
+        };
+    }
+
+    /**
+     * Load a stream in properties format, optionally recording line numbers
+     */
+    private static Properties loadProperties(InputStream istream, boolean lines) throws IOException {
+        if (lines) {
+            return Provenance.load(new InputStreamReader(istream, StandardCharsets.ISO_8859_1));
+        }
+        Properties p = new Properties();
+        p.load(istream);
+        return p;
+    }
+
+    /**
+     * A JSON document, flattened to dotted keys: {"a": {"b": [{"c": 1}]}} gives a.b[0].c=1.
+     * The document is streamed, no tree is built. The reader is not closed.
+     * @param name The name of the source, for diagnostics
+     * @param reader The document
+     * @return The source
+     */
+    public static PropertySource json(String name, final Reader reader) {
+        return new BlockingSource(name) {
+            @Override
+            Properties loadNow() throws IOException {
+                Properties p = new Properties();
+                JsonFlattener.flatten(reader, p);
+                return p;
+            }
+        };
+    }
+
+    /**
+     * A UTF-8 JSON file, flattened to dotted keys
+     * @param file The file
+     * @return The source
+     */
+    public static PropertySource json(final File file) {
+        return new BlockingSource(file.getPath()) {
+            @Override
+            Properties loadNow() throws IOException {
+                try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                    Properties p = new Properties();
+                    JsonFlattener.flatten(reader, p);
+                    return p;
+                }
+            }
+        };
+    }
+
+    /**
+     * A YAML document, flattened to dotted keys like JSON. Only the subset of YAML used for configuration is
+     * supported: block mappings and sequences, quoted and block scalars, and one line flow collections.
+     * The document is streamed, no tree is built. The reader is not closed.
+     * @param name The name of the source, for diagnostics
+     * @param reader The document
+     * @return The source
+     */
+    public static PropertySource yaml(String name, final Reader reader) {
+        return new BlockingSource(name) {
+            @Override
+            Properties loadNow() throws IOException {
+                Properties p = new Properties();
+                YamlFlattener.flatten(reader, p);
+                return p;
+            }
+        };
+    }
+
+    /**
+     * A UTF-8 YAML file, flattened to dotted keys
+     * @param file The file
+     * @return The source
+     */
+    public static PropertySource yaml(final File file) {
+        return new BlockingSource(file.getPath()) {
+            @Override
+            Properties loadNow() throws IOException {
+                try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                    Properties p = new Properties();
+                    YamlFlattener.flatten(reader, p);
+                    return p;
+                }
+            }
+        };
+    }
+
+    /**
+     * Every resource with this name on the classpath of the context class loader, merged in classpath order.
+     * The first resource that defines a key wins. Resources are read in parallel, and the merged result
+     * is cached until the classpath changes.
+     * <p>
+     * The name may be a glob, e.g. META-INF/defaults/*.properties. Globs are matched against the jars and
+     * directories of the classpath, since a class loader can't list its resources.
+     * @param name The resource name or glob, e.g. META-INF/app-defaults.properties
+     * @return The source
+     */
+    public static PropertySource classpathResources(String name) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return classpathResources(loader != null ? loader : EnvAwareProperties.class.getClassLoader(), name);
+    }
+
+    /**
+     * Every resource with this name visible to a class loader, merged in classpath order.
+     * Globs are matched against the classpath entries of the loader and its parents.
+     * @param loader The class loader to search
+     * @param name The resource name or glob, e.g. META-INF/app-defaults.properties
+     * @return The source
+     */
+    public static PropertySource classpathResources(ClassLoader loader, String name) {
+        return new ClasspathResources(loader, name);
+    }
+
+    /**
+     * Properties served over HTTP, e.g. by a config server. Any 2xx response body is parsed in properties format.
+     * @param uri The URI to GET
+     * @param timeoutMillis Request timeout in milliseconds
+     * @return The source
+     */
+    public static PropertySource http(final URI uri, final long timeoutMillis) {
+        return new PropertySource() {
+            @Override
+            public String getName() {
+                return uri.toString();
+            }
+
+            @Override
+            public CompletableFuture<Properties> load(Executor executor) {
+                HttpRequest request = HttpRequest.newBuilder(uri)
+                        .timeout(Duration.ofMillis(timeoutMillis))
+                        .GET()
+                        .build();
+                return Http.CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                        .thenApply(response -> {
+                            if (response.statusCode() / 100 != 2) {
+                                throw new CompletionException(new IOException("HTTP " + response.statusCode() + " from " + uri));
+                            }
+                            Properties p = new Properties();
+                            try {
+                                p.load(new StringReader(response.body()));
+                            } catch (IOException e) {
+                                throw new CompletionException(e);
+                            }
+                            return p;
+                        });
+            }
+        };
+    }
+
+    /**
+     * Same as http(uri, 10000)
+     * @param uri The URI to GET
+     * @return The source
+     */
+    public static PropertySource http(URI uri) {
+        return http(uri, 10000);
+    }
+
+    /**
+     * Cache the result of another source. Successful loads are reused for ttlMillis after they complete, failed
+     * loads are not cached.
+     * Concurrent builds share the same pending load.
+     * @param source The source to cache
+     * @param ttlMillis How long a result stays valid, in milliseconds
+     * @return The caching source
+     */
+    public static PropertySource cached(PropertySource source, long ttlMillis) {
+        return new CachedSource(source, ttlMillis);
+    }
+
+    /**
+     * Fail a source if it does not complete in time
+     * @param source The source
+     * @param timeoutMillis Timeout in milliseconds
+     * @return The source with timeout
+     */
+    public static PropertySource withTimeout(final PropertySource source, final long timeoutMillis) {
+        return new PropertySource() {
+            @Override
+            public String getName() {
+                return source.getName();
+            }
+
+            @Override
+            public CompletableFuture<Properties> load(Executor executor) {
+                return source.load(executor).copy().orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        };
+    }
+
+    /**
+     * Executor used for blocking loads when the builder has none. Threads are daemon threads,
+     * so they never keep the JVM alive.
+     * @return The executor
+     */
+    static Executor defaultExecutor() {
+        return Loader.EXECUTOR;
+    }
+
+    /**
+     * Executor that runs tasks on the calling thread, used by startup optimized builds
+     * @return The executor
+     */
+    static Executor directExecutor() {
+        return DirectExecutor.INSTANCE;
+    }
+
+    /**
+     * Load a source on the calling thread. Built in sources are read directly, others are joined.
+     * @param source The source
+     * @return The loaded properties
+     * @throws IOException If the source failed
+     */
+    static Properties loadNow(PropertySource source) throws IOException {
+        if (source instanceof BlockingSource) {
+            return ((BlockingSource) source).loadNow();
+        }
+        try {
+            return source.load(DirectExecutor.INSTANCE).join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Base class for sources that block while loading
+     */
+    private abstract static class BlockingSource implements PropertySource {
+        private final String name;
+
+        BlockingSource(String name) {
+            this.name = name;
+        }
+
+        abstract Properties loadNow() throws IOException;
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public CompletableFuture<Properties> load(Executor executor) {
+            return CompletableFuture.supplyAsync(new LoadTask(this), executor);
+        }
+    }
+
+    /**
+     * Base class for sources already in memory, completed without the executor
+     */
+    private abstract static class ImmediateSource extends BlockingSource {
+        ImmediateSource(String name) {
+            super(name);
+        }
+
+        @Override
+        abstract Properties loadNow();
+
+        @Override
+        public CompletableFuture<Properties> load(Executor executor) {
+            return CompletableFuture.completedFuture(loadNow());
+        }
+    }
+
+    /**
+     * Named instead of a lambda, so the startup path spins no lambda classes
+     */
+    private static final class LoadTask implements Supplier<Properties> {
+        private final BlockingSource source;
+
+        LoadTask(BlockingSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public Properties get() {
+            try {
+                return source.loadNow();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+
+    /**
+     * Runs tasks on the calling thread, for startup optimized builds
+     */
+    private static final class DirectExecutor implements Executor {
+        static final DirectExecutor INSTANCE = new DirectExecutor();
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+
+    private static class CachedSource implements PropertySource {
+        private final PropertySource delegate;
+        private final long ttlNanos;
+        private CompletableFuture<Properties> current;
+        /**
+         * The load that completed at loadedAt, the ttl of current starts once it is stamped
+         */
+        private CompletableFuture<Properties> stamped;
+        private long loadedAt;
+
+        CachedSource(PropertySource delegate, long ttlMillis) {
+            this.delegate = delegate;
+            this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        }
+
+        @Override
+        public String getName() {
+            return delegate.getName();
+        }
+
+        @Override
+        public synchronized CompletableFuture<Properties> load(Executor executor) {
+            long now = System.nanoTime();
+            if (current != null && !current.isCompletedExceptionally()
+                    && (stamped != current || now - loadedAt < ttlNanos)) {
+                return current;
+            }
+            final CompletableFuture<Properties> loading = delegate.load(executor);
+            current = loading;
+            loading.whenComplete(new BiConsumer<Properties, Throwable>() {
+                @Override
+                public void accept(Properties p, Throwable e) {
+                    completed(loading);
+                }
+            });
+            return loading;
+        }
+
+        private synchronized void completed(CompletableFuture<Properties> loaded) {
+            if (current == loaded) {
+                stamped = loaded;
+                loadedAt = System.nanoTime();
+            }
+        }
+    }
+
+    private static class Http {
+        static final HttpClient CLIENT = HttpClient.newBuilder()
+                .executor(Loader.EXECUTOR)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    private static class Loader {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "envaware-loader-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
@@ -0,0 +1,532 @@
+package net.wushilin.props;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Records where each resolved key of an EnvAwareProperties came from: the source that defined it,
+ * the line number when the source is a properties file, and the chain of keys that were looked up
+ * while resolving its placeholders.
+ * <p>
+ * Everything is stored in int arrays indexed by the position of the key, with names interned once, and keys
+ * are found through an open addressing table of positions, so keeping provenance around costs a few ints per
+ * key. It is only collected when the builder asks for it. Line numbers are collected while properties
+ * sources are parsed, so no source is read twice.
+ */
+public final class Provenance {
+    /**
+     * Line number used when the source has no line information
+     */
+    public static final int NO_LINE = -1;
+
+    private final String[] sourceNames;
+    private final String[] names;
+    /**
+     * Position of each key plus 1, 0 for an empty slot. The length is a power of 2, at least twice the keys.
+     */
+    private final int[] table;
+    private final int[] keyName;
+    private final int[] keySource;
+    private final int[] keyLine;
+    private final int[] chainOffset;
+    private final int[] chainName;
+    private final int[] chainSource;
+
+    private Provenance(Recorder r) {
+        this.sourceNames = r.sourceNames.toArray(new String[0]);
+        this.names = r.names.toArray(new String[0]);
+        this.keyName = Arrays.copyOf(r.keyName, r.keyCount);
+        this.keySource = Arrays.copyOf(r.keySource, r.keyCount);
+        this.keyLine = Arrays.copyOf(r.keyLine, r.keyCount);
+        this.chainOffset = Arrays.copyOf(r.chainOffset, r.keyCount + 1);
+        this.chainName = Arrays.copyOf(r.chainName, r.chainCount);
+        this.chainSource = Arrays.copyOf(r.chainSource, r.chainCount);
+        this.table = new int[Integer.highestOneBit(Math.max(r.keyCount, 1)) * 4];
+        int mask = table.length - 1;
+        for (int i = 0; i < r.keyCount; i++) {
+            int slot = slot(names[keyName[i]]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    private static int slot(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Position of a key, or -1
+     */
+    private int indexOf(String key) {
+        int mask = table.length - 1;
+        for (int slot = slot(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int i = table[slot] - 1;
+            if (names[keyName[i]].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Explain a key
+     * @param key The key
+     * @return The explanation, or null if the key was not produced by the build
+     */
+    public Explanation explain(String key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        List<Step> chain = new ArrayList<Step>(chainOffset[i + 1] - chainOffset[i]);
+        for (int j = chainOffset[i]; j < chainOffset[i + 1]; j++) {
+            chain.add(new Step(names[chainName[j]], sourceNames[chainSource[j]]));
+        }
+        return new Explanation(names[keyName[i]], sourceNames[keySource[i]], keyLine[i], chain);
+    }
+
+    /**
+     * Number of keys tracked
+     * @return The number of keys
+     */
+    public int size() {
+        return keyName.length;
+    }
+
+    /**
+     * One lookup done while resolving a value
+     */
+    public static final class Step {
+        private final String key;
+        private final String source;
+
+        Step(String key, String source) {
+            this.key = key;
+            this.source = source;
+        }
+
+        /**
+         * @return The key that was looked up
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The name of the source that supplied the raw value
+         */
+        public String getSource() {
+            return source;
+        }
+
+        @Override
+        public String toString() {
+            return key + " (" + source + ")";
+        }
+    }
+
+    /**
+     * Where a key came from and how its value was resolved
+     */
+    public static final class Explanation {
+        private final String key;
+        private final String source;
+        private final int line;
+        private final List<Step> chain;
+
+        Explanation(String key, String source, int line, List<Step> chain) {
+            this.key = key;
+            this.source = source;
+            this.line = line;
+            this.chain = Collections.unmodifiableList(chain);
+        }
+
+        /**
+         * @return The key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The name of the source that defined the key
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return The line number in the source, or NO_LINE
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * @return The placeholder lookups in the order they were done
+         */
+        public List<Step> getChain() {
+            return chain;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(key).append(" <= ").append(source);
+            if (line != NO_LINE) {
+                sb.append(':').append(line);
+            }
+            for (Step next : chain) {
+                sb.append(" -> ").append(next);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Collects provenance during a resolution pass. Not thread safe, used by a single build.
+     */
+    static final class Recorder {
+        private final List<String> sourceNames = new ArrayList<String>();
+        private final List<Map<String, Integer>> sourceLines = new ArrayList<Map<String, Integer>>();
+        private final List<String> names = new ArrayList<String>();
+        private final Map<String, Integer> nameIndex = new HashMap<String, Integer>();
+        private PropertyLayer[] layers;
+        private int keyCount;
+        private int[] keyName = new int[16];
+        private int[] keySource = new int[16];
+        private int[] keyLine = new int[16];
+        private int[] chainOffset = new int[17];
+        private int chainCount;
+        private int[] chainName = new int[16];
+        private int[] chainSource = new int[16];
+
+        /**
+         * Set the layers, in the same order as the source names were added
+         * @param layers The layers
+         */
+        void setLayers(List<PropertyLayer> layers) {
+            this.layers = layers.toArray(new PropertyLayer[0]);
+        }
+
+        /**
+         * Register a source name. Sources are numbered in the order they are added.
+         * @param name The name of the source
+         * @param lines Line numbers of its keys, or null if unknown
+         */
+        void addSource(String name, Map<String, Integer> lines) {
+            sourceNames.add(name);
+            sourceLines.add(lines);
+        }
+
+        /**
+         * Start recording a key. Lookups done until the next call belong to this key.
+         * @param key The key
+         */
+        void beginKey(String key) {
+            int source = sourceOf(key);
+            Map<String, Integer> lines = sourceLines.get(source);
+            Integer line = lines == null ? null : lines.get(key);
+            if (keyCount == keyName.length) {
+                int size = keyCount * 2;
+                keyName = Arrays.copyOf(keyName, size);
+                keySource = Arrays.copyOf(keySource, size);
+                keyLine = Arrays.copyOf(keyLine, size);
+                chainOffset = Arrays.copyOf(chainOffset, size + 1);
+            }
+            keyName[keyCount] = intern(key);
+            keySource[keyCount] = source;
+            keyLine[keyCount] = line == null ? NO_LINE : line;
+            keyCount++;
+            chainOffset[keyCount] = chainCount;
+        }
+
+        /**
+         * Index of the first layer that defines a key
+         * @param key The key
+         * @return The layer index
+         */
+        int sourceOf(String key) {
+            for (int i = 0; i < layers.length; i++) {
+                if (layers[i].getProperty(key) != null) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * A lookup layer that records every hit against the current key
+         * @return The layer
+         */
+        PropertyLayer lookup() {
+            return new PropertyLayer("recorder") {
+                @Override
+                public String getProperty(String key) {
+                    for (int i = 0; i < layers.length; i++) {
+                        String value = layers[i].getProperty(key);
+                        if (value != null) {
+                            record(key, i);
+                            return value;
+                        }
+                    }
+                    return null;
+                }
+
+                @Override
+                public Set<String> keys() {
+                    return Collections.emptySet();
+                }
+            };
+        }
+
+        private void record(String key, int source) {
+            int name = intern(key);
+            for (int j = chainOffset[keyCount - 1]; j < chainCount; j++) {
+                if (chainName[j] == name) {
+                    return;
+                }
+            }
+            if (chainCount == chainName.length) {
+                chainName = Arrays.copyOf(chainName, chainCount * 2);
+                chainSource = Arrays.copyOf(chainSource, chainCount * 2);
+            }
+            chainName[chainCount] = name;
+            chainSource[chainCount] = source;
+            chainCount++;
+            chainOffset[keyCount] = chainCount;
+        }
+
+        private int intern(String name) {
+            Integer idx = nameIndex.get(name);
+            if (idx == null) {
+                idx = names.size();
+                names.add(name);
+                nameIndex.put(name, idx);
+            }
+            return idx;
+        }
+
+        Provenance build() {
+            return new Provenance(this);
+        }
+    }
+
+    /**
+     * Properties loaded by load, with the line number of each key
+     */
+    static final class LinedProperties extends Properties {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Map<String, Integer> lines = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Line numbers of the keys of properties loaded by load
+     * @param p The properties
+     * @return Map of key to 1 based line number, or null if p was not loaded by load
+     */
+    static Map<String, Integer> lines(Properties p) {
+        return p instanceof LinedProperties ? ((LinedProperties) p).lines : null;
+    }
+
+    /**
+     * Load properties file content, and record the line number of every key on the way. Logical lines,
+     * comments, continuation lines, separators and escapes follow the rules of Properties.load, and when a key
+     * is defined more than once, the last definition wins, same as Properties.load.
+     * @param reader The content, not closed
+     * @return The properties
+     * @throws IOException If reading failed
+     * @throws IllegalArgumentException On a malformed unicode escape, same as Properties.load
+     */
+    static Properties load(Reader reader) throws IOException {
+        LinedProperties result = new LinedProperties();
+        LineReader in = new LineReader(reader);
+        int limit;
+        while ((limit = in.readLine()) >= 0) {
+            CharSequence line = in.line;
+            int keyEnd = 0;
+            int valueStart = limit;
+            boolean separator = false;
+            boolean escaped = false;
+            while (keyEnd < limit) {
+                char c = line.charAt(keyEnd);
+                if ((c == '=' || c == ':') && !escaped) {
+                    valueStart = keyEnd + 1;
+                    separator = true;
+                    break;
+                }
+                if (isWhitespace(c) && !escaped) {
+                    valueStart = keyEnd + 1;
+                    break;
+                }
+                escaped = c == '\\' && !escaped;
+                keyEnd++;
+            }
+            while (valueStart < limit) {
+                char c = line.charAt(valueStart);
+                if (!isWhitespace(c)) {
+                    if (separator || (c != '=' && c != ':')) {
+                        break;
+                    }
+                    separator = true;
+                }
+                valueStart++;
+            }
+            String key = unescape(line, 0, keyEnd);
+            result.put(key, unescape(line, valueStart, limit));
+            result.lines.put(key, in.startLine);
+        }
+        return result;
+    }
+
+    /**
+     * Reads logical lines the same way as the LineReader of Properties, and counts physical lines
+     */
+    private static final class LineReader {
+        private final BufferedReader in;
+        final StringBuilder line = new StringBuilder();
+        /**
+         * 1 based line number of the first character of the last logical line
+         */
+        int startLine;
+        private int lineNo = 1;
+        private int previous = -1;
+
+        LineReader(Reader reader) {
+            this.in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        }
+
+        private int read() throws IOException {
+            int c = in.read();
+            // \r\n is one line break
+            if ((previous == '\n' || previous == '\r') && !(previous == '\r' && c == '\n')) {
+                lineNo++;
+            }
+            previous = c;
+            return c;
+        }
+
+        private int peek() throws IOException {
+            in.mark(1);
+            int c = in.read();
+            in.reset();
+            return c;
+        }
+
+        /**
+         * Read the next logical line into line
+         * @return Its length, which may be less than the length of line, or -1 at the end
+         */
+        int readLine() throws IOException {
+            line.setLength(0);
+            int len = 0;
+            boolean skipWhiteSpace = true;
+            boolean appendedLineBegin = false;
+            boolean precedingBackslash = false;
+            while (true) {
+                int r = read();
+                if (r < 0) {
+                    if (len == 0) {
+                        return -1;
+                    }
+                    return precedingBackslash ? len - 1 : len;
+                }
+                char c = (char) r;
+                if (skipWhiteSpace) {
+                    if (isWhitespace(c)) {
+                        continue;
+                    }
+                    if (!appendedLineBegin && (c == '\r' || c == '\n')) {
+                        continue;
+                    }
+                    skipWhiteSpace = false;
+                    appendedLineBegin = false;
+                }
+                if (len == 0 && (c == '#' || c == '!')) {
+                    // a comment runs to the end of the physical line
+                    do {
+                        r = read();
+                        if (r < 0) {
+                            return -1;
+                        }
+                    } while (r != '\r' && r != '\n');
+                    skipWhiteSpace = true;
+                    continue;
+                }
+                if (c != '\n' && c != '\r') {
+                    if (len == 0) {
+                        startLine = lineNo;
+                    }
+                    line.setLength(len);
+                    line.append(c);
+                    len++;
+                    precedingBackslash = c == '\\' && !precedingBackslash;
+                    continue;
+                }
+                if (len == 0) {
+                    skipWhiteSpace = true;
+                    continue;
+                }
+                if (peek() < 0) {
+                    return precedingBackslash ? len - 1 : len;
+                }
+                if (!precedingBackslash) {
+                    return len;
+                }
+                // a backslash at the end of the line is not part of it, the line goes on after the break
+                len--;
+                skipWhiteSpace = true;
+                appendedLineBegin = true;
+                precedingBackslash = false;
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+            }
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\f';
+    }
+
+    private static String unescape(CharSequence line, int from, int to) {
+        StringBuilder sb = new StringBuilder(to - from);
+        int i = from;
+        while (i < to) {
+            char c = line.charAt(i++);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (i == to) {
+                // a single trailing backslash is dropped
+                break;
+            }
+            c = line.charAt(i++);
+            if (c == 'u') {
+                if (i + 4 > to) {
+                    throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                }
+                int value = 0;
+                for (int j = 0; j < 4; j++) {
+                    char h = line.charAt(i++);
+                    int digit = h <= 'f' ? Character.digit(h, 16) : -1;
+                    if (digit < 0) {
+                        throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+                    }
+                    value = (value << 4) | digit;
+                }
+                sb.append((char) value);
+                continue;
+            }
+            sb.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c == 'f' ? '\f' : c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,13 @@
+package net.wushilin.props;
+
+/**
+ * Thrown by the resolver on a cycle or when a limit is exceeded.
+ * However it is not exposed.
+ */
+class ResolutionException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public ResolutionException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,145 @@
+package net.wushilin.props;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copies text from a Reader to a Writer, expanding ${...} placeholders on the way.
+ * <p>
+ * Text is read into a fixed size buffer, and everything outside of placeholders is written straight from
+ * that buffer. Only the placeholder being read is held in memory, so placeholders may span buffer
+ * boundaries, and the memory used does not depend on the size of the input. A placeholder is expanded
+ * exactly like a value would be, placeholders that can't be resolved, that are longer than MAX_PLACEHOLDER
+ * or that are not closed before the end of input are copied as is. In strict mode each of these fails the
+ * render with IllegalArgumentException instead.
+ * <p>
+ * Expanded placeholders are cached, because templates tend to repeat the same few placeholders.
+ */
+class TemplateRenderer {
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Longest placeholder text, including nested placeholders and fallbacks
+     */
+    static final int MAX_PLACEHOLDER = 64 * 1024;
+    private static final int MAX_CACHED = 4096;
+
+    private final PlaceholderResolver resolver;
+    private final boolean strict;
+    private final Map<String, String> cache = new HashMap<String, String>();
+
+    TemplateRenderer(PlaceholderResolver resolver, boolean strict) {
+        this.resolver = resolver;
+        this.strict = strict;
+    }
+
+    /**
+     * Render all of in to out. Neither is closed.
+     * @param in The template
+     * @param out Where to write the result
+     * @throws IOException If reading or writing failed
+     */
+    void render(Reader in, Writer out) throws IOException {
+        char[] buf = new char[BUFFER_SIZE];
+        StringBuilder placeholder = new StringBuilder();
+        // placeholders open in the placeholder being read
+        int depth = 0;
+        // a '$' ended the previous buffer, and was not written yet
+        boolean pendingDollar = false;
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            int start = 0;
+            int i = 0;
+            while (i < n) {
+                char c = buf[i];
+                if (depth > 0) {
+                    i++;
+                    char prev = placeholder.charAt(placeholder.length() - 1);
+                    placeholder.append(c);
+                    if (c == '{' && prev == '$') {
+                        depth++;
+                    } else if (c == '}' && --depth == 0) {
+                        out.write(expand(placeholder.toString()));
+                        placeholder.setLength(0);
+                        start = i;
+                    } else if (placeholder.length() > MAX_PLACEHOLDER) {
+                        if (strict) {
+                            throw new IllegalArgumentException("Placeholder longer than " + MAX_PLACEHOLDER
+                                    + " characters: " + placeholder.substring(0, 64) + "...");
+                        }
+                        out.append(placeholder);
+                        placeholder.setLength(0);
+                        depth = 0;
+                        start = i;
+                    }
+                    continue;
+                }
+                if (pendingDollar) {
+                    pendingDollar = false;
+                    if (c == '{') {
+                        placeholder.append("${");
+                        depth = 1;
+                        start = ++i;
+                        continue;
+                    }
+                    out.write('$');
+                }
+                if (c != '$') {
+                    i++;
+                    continue;
+                }
+                if (i + 1 == n) {
+                    out.write(buf, start, i - start);
+                    pendingDollar = true;
+                    start = ++i;
+                } else if (buf[i + 1] == '{') {
+                    out.write(buf, start, i - start);
+                    placeholder.append("${");
+                    depth = 1;
+                    i += 2;
+                    start = i;
+                } else {
+                    i++;
+                }
+            }
+            if (depth == 0 && !pendingDollar) {
+                out.write(buf, start, n - start);
+            }
+        }
+        if (pendingDollar) {
+            out.write('$');
+        }
+        // not closed before the end of input
+        if (strict && placeholder.length() > 0) {
+            throw new IllegalArgumentException("Placeholder not closed: " + placeholder);
+        }
+        out.append(placeholder);
+    }
+
+    private String expand(String text) {
+        String cached = cache.get(text);
+        if (cached != null) {
+            return cached;
+        }
+        String result;
+        try {
+            resolver.resetExpansions();
+            result = resolver.resolve(text);
+            // every resolved placeholder is substituted, so a remaining one refers to a missing key
+            if (strict && result.indexOf("${") >= 0) {
+                throw new IllegalArgumentException("Unable to resolve " + text);
+            }
+        } catch (ResolutionException ex) {
+            if (strict) {
+                throw new IllegalArgumentException("Unable to resolve " + text + ": " + ex.getMessage());
+            }
+            result = text;
+        }
+        if (cache.size() < MAX_CACHED) {
+            cache.put(text, result);
+        }
+        return result;
+    }
+}
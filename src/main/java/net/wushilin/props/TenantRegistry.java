@@ -0,0 +1,393 @@
+package net.wushilin.props;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Many tenant configurations sharing one resolved base, see EnvAwareProperties.tenants.
+ * <p>
+ * A tenant is registered with only the keys it overrides. Its values are the overrides, resolved against the
+ * overrides and then the base, on top of the base itself:
+ * <pre>
+ * // base: bucket=s3://${tenant.id}-data, tenant.id is not defined in the base
+ * TenantRegistry registry = base.tenants(1000, 100_000);
+ * registry.register("acme", Collections.singletonMap("tenant.id", "acme"));
+ * String bucket = registry.tenant("acme").getProperty("bucket"); // s3://acme-data
+ * </pre>
+ * This gives the same values as merging each tenant with the base, but the base is never copied. Only base
+ * values that still have placeholders after the base was built, like bucket above, are resolved again for
+ * each tenant, the same way a merge would. Base values that were fully resolved when the base was built keep
+ * their value: with db.url=jdbc://${db.host}/app in the base, a tenant that overrides db.host still reads the
+ * db.url of the base, so override db.url as well.
+ * <p>
+ * Resolved tenant values are computed when a tenant is first read, and kept in a cache bounded both by the
+ * number of tenants and by the total number of values. Reads of cached tenants take no lock. Eviction is
+ * approximately least recently used: reads stamp a tenant with the current miss count, and when the cache is
+ * full the tenants with the oldest stamps are dropped. Heap use grows with the size of the overrides, not with
+ * the number of tenants times the size of the base. Changes to the base are picked up on the next read of each
+ * tenant.
+ * <p>
+ * Reads of base values through a tenant, including base values the tenant resolves again, are counted by the
+ * access profile of the base. Reads of keys the tenant overrides are not.
+ */
+public class TenantRegistry {
+    private final EnvAwareProperties base;
+    private final int maxCachedTenants;
+    private final long maxCachedEntries;
+    /**
+     * Raw overrides of each tenant
+     */
+    private final Map<String, Map<String, String>> overlays = new ConcurrentHashMap<String, Map<String, String>>();
+    /**
+     * Resolved values of recently used tenants. Read without a lock, updated while holding evictLock.
+     */
+    private final ConcurrentHashMap<String, Resolved> cache = new ConcurrentHashMap<String, Resolved>();
+    private final Object evictLock = new Object();
+    /**
+     * Total weight of the cache. Guarded by evictLock.
+     */
+    private volatile long cachedEntries;
+    /**
+     * Incremented on every cache miss, read hits stamp their tenant with it
+     */
+    private final AtomicLong clock = new AtomicLong();
+    /**
+     * Base keys whose values still have placeholders, for the change count of the base they were found in
+     */
+    private volatile Unresolved unresolved;
+
+    /**
+     * Create a registry on top of base. See EnvAwareProperties.tenants.
+     * @param base The shared base
+     * @param maxCachedTenants How many tenants keep their resolved values cached, at least 1
+     * @param maxCachedEntries How many resolved values all cached tenants may hold together
+     */
+    TenantRegistry(EnvAwareProperties base, int maxCachedTenants, long maxCachedEntries) {
+        if (maxCachedTenants < 1) {
+            throw new IllegalArgumentException("Need to cache at least 1 tenant, got " + maxCachedTenants);
+        }
+        if (maxCachedEntries < 0) {
+            throw new IllegalArgumentException("Negative cache size " + maxCachedEntries);
+        }
+        this.base = base;
+        this.maxCachedTenants = maxCachedTenants;
+        this.maxCachedEntries = maxCachedEntries;
+    }
+
+    private static final class Unresolved {
+        final int changeCount;
+        final String[] keys;
+
+        Unresolved(int changeCount, String[] keys) {
+            this.changeCount = changeCount;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * Resolved values of one tenant that differ from the base
+     */
+    private static final class Resolved {
+        final Map<String, String> overlay;
+        final int changeCount;
+        final Map<String, String> values;
+        /**
+         * Value of clock when the tenant was last read
+         */
+        volatile long used;
+
+        Resolved(Map<String, String> overlay, int changeCount, Map<String, String> values, long used) {
+            this.overlay = overlay;
+            this.changeCount = changeCount;
+            this.values = values;
+            this.used = used;
+        }
+
+        long weight() {
+            return values.size() + 1;
+        }
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final String tenant;
+        final Resolved resolved;
+        final long used;
+
+        Candidate(String tenant, Resolved resolved) {
+            this.tenant = tenant;
+            this.resolved = resolved;
+            this.used = resolved.used;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Long.compare(used, other.used);
+        }
+    }
+
+    /**
+     * The configuration of one tenant. It holds no values itself, so it is cheap to create and can be kept.
+     */
+    public final class Tenant {
+        private final String id;
+
+        private Tenant(String id) {
+            this.id = id;
+        }
+
+        /**
+         * Get the tenant id
+         * @return The id
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Lookup a value of this tenant
+         * @param key The key
+         * @return The tenant value if the tenant overrides or re-resolves the key, else the base value
+         * @throws IllegalArgumentException If the tenant was removed, or in strict mode, if its value can't
+         *                                  be resolved
+         */
+        public String getProperty(String key) {
+            Resolved resolved = resolved(id);
+            String value = resolved.values.get(key);
+            if (value == null) {
+                value = base.peekProperty(key);
+                if (value == null) {
+                    return null;
+                }
+            } else if (resolved.overlay.containsKey(key)) {
+                return value;
+            }
+            base.countRead(key);
+            return value;
+        }
+
+        /**
+         * Lookup a value of this tenant, with default
+         * @param key The key
+         * @param defaultValue Returned when the key is not defined
+         * @return The value
+         */
+        public String getProperty(String key, String defaultValue) {
+            String value = getProperty(key);
+            return value != null ? value : defaultValue;
+        }
+
+        /**
+         * Copy the whole configuration of this tenant, e.g. for code that needs a Properties.
+         * This copies the base, so prefer getProperty.
+         * @return A new properties with the base and the tenant values
+         */
+        public EnvAwareProperties toProperties() {
+            Map<String, String> values = resolved(id).values;
+            EnvAwareProperties result = new EnvAwareProperties();
+            synchronized (base) {
+                for (String key : base.stringPropertyNames()) {
+                    result.setProperty(key, base.peekProperty(key));
+                }
+            }
+            result.putAll(values);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "Tenant[" + id + "]";
+        }
+    }
+
+    /**
+     * Register a tenant, or replace the overrides of a registered one
+     * @param tenant The tenant id
+     * @param overrides The keys the tenant overrides. They may contain placeholders.
+     */
+    public void register(String tenant, Map<String, String> overrides) {
+        if (tenant == null) {
+            throw new NullPointerException("Null tenant");
+        }
+        Map<String, String> copy = new HashMap<String, String>(overrides.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> next : overrides.entrySet()) {
+            if (next.getKey() == null || next.getValue() == null) {
+                throw new NullPointerException("Null key or value for tenant " + tenant);
+            }
+            copy.put(next.getKey(), next.getValue());
+        }
+        overlays.put(tenant, copy);
+        evict(tenant);
+    }
+
+    /**
+     * Remove a tenant
+     * @param tenant The tenant id
+     * @return true if it was registered
+     */
+    public boolean remove(String tenant) {
+        boolean result = overlays.remove(tenant) != null;
+        evict(tenant);
+        return result;
+    }
+
+    /**
+     * Registered tenant ids
+     * @return Unmodifiable set of ids
+     */
+    public Set<String> tenants() {
+        return Collections.unmodifiableSet(overlays.keySet());
+    }
+
+    /**
+     * Get the configuration of a tenant. Nothing is resolved until it is read.
+     * @param tenant The tenant id
+     * @return The tenant
+     * @throws IllegalArgumentException If the tenant is not registered
+     */
+    public Tenant tenant(String tenant) {
+        if (!overlays.containsKey(tenant)) {
+            throw new IllegalArgumentException("Unknown tenant " + tenant);
+        }
+        return new Tenant(tenant);
+    }
+
+    /**
+     * Number of tenants with resolved values in the cache
+     * @return The number of tenants
+     */
+    public int getCachedTenants() {
+        return cache.size();
+    }
+
+    /**
+     * Weight of the cache: each cached tenant counts its resolved values plus 1
+     * @return The weight
+     */
+    public long getCachedEntries() {
+        return cachedEntries;
+    }
+
+    private void evict(String tenant) {
+        synchronized (evictLock) {
+            Resolved old = cache.remove(tenant);
+            if (old != null) {
+                cachedEntries -= old.weight();
+            }
+        }
+    }
+
+    private Resolved resolved(String tenant) {
+        Map<String, String> overlay = overlays.get(tenant);
+        if (overlay == null) {
+            throw new IllegalArgumentException("Unknown tenant " + tenant);
+        }
+        int changeCount = base.changeCount();
+        Resolved result = cache.get(tenant);
+        if (result != null && result.overlay == overlay && result.changeCount == changeCount) {
+            long now = clock.get();
+            if (result.used != now) {
+                result.used = now;
+            }
+            return result;
+        }
+        result = new Resolved(overlay, changeCount, resolve(overlay, changeCount), clock.incrementAndGet());
+        synchronized (evictLock) {
+            if (overlays.get(tenant) != overlay) {
+                // replaced or removed while resolving, don't cache a stale value
+                return result;
+            }
+            Resolved old = cache.put(tenant, result);
+            long weight = cachedEntries - (old != null ? old.weight() : 0) + result.weight();
+            if (cache.size() > maxCachedTenants || weight > maxCachedEntries) {
+                weight = shrink(tenant, weight);
+            }
+            cachedEntries = weight;
+        }
+        return result;
+    }
+
+    /**
+     * Drop the least recently used tenants until the cache is within its bounds, or only keep is left.
+     * A full cache is shrunk to 7/8 of its bounds, so the scan is paid once per many misses.
+     * @return The new weight
+     */
+    private long shrink(String keep, long weight) {
+        int tenantLimit = maxCachedTenants - maxCachedTenants / 8;
+        long entryLimit = maxCachedEntries - maxCachedEntries / 8;
+        // stamps are copied, since readers keep updating them while sorting
+        List<Candidate> candidates = new ArrayList<Candidate>(cache.size());
+        for (Map.Entry<String, Resolved> next : cache.entrySet()) {
+            candidates.add(new Candidate(next.getKey(), next.getValue()));
+        }
+        Collections.sort(candidates);
+        int size = candidates.size();
+        for (Candidate eldest : candidates) {
+            if (size <= 1 || (size <= tenantLimit && weight <= entryLimit)) {
+                break;
+            }
+            if (eldest.tenant.equals(keep)) {
+                continue;
+            }
+            if (cache.remove(eldest.tenant, eldest.resolved)) {
+                weight -= eldest.resolved.weight();
+                size--;
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Resolve the overrides of a tenant, and the base values that still have placeholders
+     */
+    private Map<String, String> resolve(final Map<String, String> overlay, int changeCount) {
+        PropertyLayer lookup = new PropertyLayer("tenant") {
+            @Override
+            public String getProperty(String key) {
+                String value = overlay.get(key);
+                return value != null ? value : base.peekProperty(key);
+            }
+
+            @Override
+            public Set<String> keys() {
+                return Collections.emptySet();
+            }
+        };
+        PlaceholderResolver resolver = base.newResolver(lookup);
+        Map<String, String> result = new HashMap<String, String>(overlay.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> next : overlay.entrySet()) {
+            result.put(next.getKey(), base.resolve(resolver, next.getKey(), next.getValue(), false));
+        }
+        for (String key : unresolved(changeCount)) {
+            if (overlay.containsKey(key)) {
+                continue;
+            }
+            String raw = base.peekProperty(key);
+            if (raw == null) {
+                continue;
+            }
+            String value = base.resolve(resolver, key, raw, false);
+            if (!value.equals(raw)) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    private String[] unresolved(int changeCount) {
+        Unresolved result = unresolved;
+        if (result == null || result.changeCount != changeCount) {
+            List<String> keys = new ArrayList<String>();
+            synchronized (base) {
+                for (String key : base.stringPropertyNames()) {
+                    if (base.peekProperty(key).indexOf("${") >= 0) {
+                        keys.add(key);
+                    }
+                }
+            }
+            result = new Unresolved(changeCount, keys.toArray(new String[0]));
+            unresolved = result;
+        }
+        return result.keys;
+    }
+}
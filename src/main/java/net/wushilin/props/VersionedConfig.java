@@ -0,0 +1,365 @@
+package net.wushilin.props;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A versioned store in front of an EnvAwareProperties.
+ * <p>
+ * Updates are made in batches. Each committed batch produces a new immutable Version, and is then applied to
+ * the EnvAwareProperties as one write, so subscribers get one notification for the whole batch. Plain reads
+ * of the EnvAwareProperties take no lock, and may see part of a batch. Only pinned readers get an atomic view:
+ * they pin the current version for a whole request, and read it without any lock:
+ * <pre>
+ * try (VersionedConfig.Pin pin = config.pin()) {
+ *     handle(request, pin.getProperty("db.url"), pin.getProperty("db.user"));
+ * }
+ * </pre>
+ * Versions share their storage: each version is a persistent hash trie that shares every node the commit
+ * did not touch with the version before it. A commit costs about as much as the keys it changes, whatever the
+ * size of the config or the number of commits before it.
+ * <p>
+ * The last N versions are kept for rollback. Older versions are dropped from the history, and are freed as
+ * soon as no pin refers to them any more.
+ */
+public class VersionedConfig {
+    /**
+     * Marks a key removed in a change map
+     */
+    private static final String REMOVED = new String("<removed>");
+
+    private final EnvAwareProperties target;
+    private final int retain;
+    /**
+     * Retained versions, oldest first. Guarded by this.
+     */
+    private final ArrayDeque<Version> history = new ArrayDeque<Version>();
+    private volatile Version current;
+
+    /**
+     * Create a store starting from the current content of target. See EnvAwareProperties.versioned.
+     * @param target The properties updates are applied to
+     * @param retain How many versions to keep for rollback, at least 1
+     */
+    VersionedConfig(EnvAwareProperties target, int retain) {
+        if (retain < 1) {
+            throw new IllegalArgumentException("Need to retain at least 1 version, got " + retain);
+        }
+        this.target = target;
+        this.retain = retain;
+        PersistentMap values = PersistentMap.EMPTY;
+        synchronized (target) {
+            for (String key : target.stringPropertyNames()) {
+                values = values.put(key, target.peekProperty(key));
+            }
+        }
+        this.current = new Version(1, values);
+        history.addLast(current);
+    }
+
+    /**
+     * An immutable snapshot of the config
+     */
+    public static final class Version {
+        private final long version;
+        /**
+         * Shares unchanged nodes with other versions
+         */
+        private final PersistentMap values;
+        private final AtomicInteger pins = new AtomicInteger();
+        private Set<String> keys;
+
+        Version(long version, PersistentMap values) {
+            this.version = version;
+            this.values = values;
+        }
+
+        /**
+         * Get the version number. Version numbers increase by 1 on each commit or rollback.
+         * @return The version number
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Lookup a value
+         * @param key The key
+         * @return The value, or null if not defined in this version
+         */
+        public String getProperty(String key) {
+            return values.get(key);
+        }
+
+        /**
+         * Lookup a value, with default
+         * @param key The key
+         * @param defaultValue Returned when the key is not defined
+         * @return The value
+         */
+        public String getProperty(String key, String defaultValue) {
+            String value = getProperty(key);
+            return value != null ? value : defaultValue;
+        }
+
+        /**
+         * Keys defined in this version
+         * @return Unmodifiable set of keys
+         */
+        public synchronized Set<String> keys() {
+            if (keys == null) {
+                Set<String> result = new HashSet<String>(values.size() * 4 / 3 + 1);
+                values.keysTo(result);
+                keys = Collections.unmodifiableSet(result);
+            }
+            return keys;
+        }
+
+        /**
+         * Number of readers that currently pin this version
+         * @return The pin count
+         */
+        public int getPinCount() {
+            return pins.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Version[" + version + ", " + values.size() + " keys]";
+        }
+    }
+
+    /**
+     * A pinned version. Close it when the request is done.
+     */
+    public static final class Pin implements AutoCloseable {
+        private final Version version;
+        private boolean closed;
+
+        Pin(Version version) {
+            this.version = version;
+        }
+
+        /**
+         * Get the pinned version
+         * @return The version
+         */
+        public Version getVersion() {
+            return version;
+        }
+
+        /**
+         * Lookup a value in the pinned version
+         * @param key The key
+         * @return The value, or null
+         */
+        public String getProperty(String key) {
+            return version.getProperty(key);
+        }
+
+        /**
+         * Release the version
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                version.pins.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A batch of updates, applied atomically by commit
+     */
+    public final class Batch {
+        private final Map<String, String> updates = new LinkedHashMap<String, String>();
+        private boolean committed;
+
+        private Batch() {
+        }
+
+        /**
+         * Set a value. The value may contain placeholders, they are resolved against the new version.
+         * @param key The key
+         * @param value The value
+         * @return self
+         */
+        public Batch set(String key, String value) {
+            if (key == null || value == null) {
+                throw new NullPointerException("Null key or value");
+            }
+            updates.put(key, value);
+            return this;
+        }
+
+        /**
+         * Set many values
+         * @param values The values
+         * @return self
+         */
+        public Batch setAll(Map<String, String> values) {
+            for (Map.Entry<String, String> next : values.entrySet()) {
+                set(next.getKey(), next.getValue());
+            }
+            return this;
+        }
+
+        /**
+         * Remove a key
+         * @param key The key
+         * @return self
+         */
+        public Batch remove(String key) {
+            updates.put(key, REMOVED);
+            return this;
+        }
+
+        /**
+         * Commit the batch as a new version
+         * @return The new version
+         */
+        public Version commit() {
+            if (committed) {
+                throw new IllegalStateException("Batch already committed");
+            }
+            committed = true;
+            return VersionedConfig.this.commit(updates);
+        }
+    }
+
+    /**
+     * Start a batch of updates
+     * @return The batch
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * The current version. Reading it takes no lock.
+     * @return The current version
+     */
+    public Version current() {
+        return current;
+    }
+
+    /**
+     * Pin the current version, so it stays readable even after newer versions push it out of the history
+     * @return The pin, close it when done
+     */
+    public Pin pin() {
+        Version v = current;
+        v.pins.incrementAndGet();
+        return new Pin(v);
+    }
+
+    /**
+     * Retained versions, oldest first
+     * @return The versions
+     */
+    public synchronized List<Version> history() {
+        return new ArrayList<Version>(history);
+    }
+
+    /**
+     * Make the content of a retained version current again. This commits a new version with that content,
+     * so version numbers keep increasing.
+     * @param version The version number to go back to
+     * @return The new version
+     */
+    public synchronized Version rollback(long version) {
+        Version to = null;
+        for (Version next : history) {
+            if (next.version == version) {
+                to = next;
+            }
+        }
+        if (to == null) {
+            throw new IllegalArgumentException("Version " + version + " is not retained");
+        }
+        Version from = current;
+        Map<String, String> updates = new HashMap<String, String>();
+        // only the nodes that differ between the two versions are visited
+        PersistentMap.diff(from.values, to.values, REMOVED, updates);
+        return publish(updates);
+    }
+
+    /**
+     * Go back to the version before the current one
+     * @return The new version
+     */
+    public synchronized Version rollback() {
+        if (history.size() < 2) {
+            throw new IllegalArgumentException("No earlier version is retained");
+        }
+        Iterator<Version> it = history.descendingIterator();
+        it.next();
+        return rollback(it.next().version);
+    }
+
+    private synchronized Version commit(Map<String, String> updates) {
+        final Version from = current;
+        final Map<String, String> pending = updates;
+        // placeholders in the batch see the batch first, then the current version
+        PropertyLayer lookup = new PropertyLayer("batch") {
+            @Override
+            public String getProperty(String key) {
+                String value = pending.get(key);
+                if (value == REMOVED) {
+                    return null;
+                }
+                return value != null ? value : from.getProperty(key);
+            }
+
+            @Override
+            public Set<String> keys() {
+                return Collections.emptySet();
+            }
+        };
+        PlaceholderResolver resolver = target.newResolver(lookup);
+        Map<String, String> resolved = new HashMap<String, String>(updates.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> next : updates.entrySet()) {
+            String value = next.getValue();
+            if (value != REMOVED) {
+                value = target.resolve(resolver, next.getKey(), value, false);
+            }
+            resolved.put(next.getKey(), value);
+        }
+        return publish(resolved);
+    }
+
+    /**
+     * Create the next version from resolved updates, retain it, and apply it to the target
+     */
+    private Version publish(Map<String, String> updates) {
+        Version from = current;
+        PersistentMap values = from.values;
+        for (Map.Entry<String, String> e : updates.entrySet()) {
+            if (e.getValue() == REMOVED) {
+                values = values.remove(e.getKey());
+            } else {
+                values = values.put(e.getKey(), e.getValue());
+            }
+        }
+        Version next = new Version(from.version + 1, values);
+        Map<String, String> puts = new HashMap<String, String>(updates.size() * 4 / 3 + 1);
+        List<String> removes = new ArrayList<String>();
+        for (Map.Entry<String, String> e : updates.entrySet()) {
+            if (e.getValue() == REMOVED) {
+                removes.add(e.getKey());
+            } else {
+                puts.put(e.getKey(), e.getValue());
+            }
+        }
+        synchronized (target) {
+            target.apply(puts, removes);
+            current = next;
+        }
+        history.addLast(next);
+        while (history.size() > retain) {
+            history.removeFirst();
+        }
+        return next;
+    }
+}
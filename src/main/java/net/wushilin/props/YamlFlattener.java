@@ -0,0 +1,471 @@
+package net.wushilin.props;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the common subset of YAML used for configuration into flat properties, one line at a time, without
+ * building a tree. Keys are flattened the same way as JSON: a.b[0].c.
+ * <p>
+ * Supported:
+ * <ul>
+ *     <li>Block mappings and block sequences, including sequences of mappings ("- name: x")</li>
+ *     <li>Plain, 'single quoted' and "double quoted" scalars, and # comments</li>
+ *     <li>Literal (|) and folded (&gt;) block scalars, with the - chomping indicator</li>
+ *     <li>Flow sequences and mappings of scalars on one line: [a, b] and {a: 1, b: 2}</li>
+ *     <li>A single document, optionally started with ---</li>
+ * </ul>
+ * Anchors, aliases, tags, multi line flow collections and multiple documents are rejected.
+ * Nulls (~, null or no value) produce no key.
+ */
+final class YamlFlattener {
+    /**
+     * An open block collection
+     */
+    private static final class Level {
+        final int indent;
+        final String path;
+        final boolean sequence;
+        int index;
+
+        Level(int indent, String path, boolean sequence) {
+            this.indent = indent;
+            this.path = path;
+            this.sequence = sequence;
+        }
+    }
+
+    private final BufferedReader in;
+    private final Map<Object, Object> out;
+    private final List<Level> stack = new ArrayList<Level>();
+    private int lineNumber;
+    private boolean started;
+
+    /**
+     * Key whose value is on the following, more indented lines
+     */
+    private String pending;
+    private int pendingIndent;
+    /**
+     * Whether pending is a sequence item, whose value can't be a sequence at its own indent
+     */
+    private boolean pendingItem;
+
+    /**
+     * Block scalar being read
+     */
+    private String blockPath;
+    private int blockParentIndent;
+    private int blockIndent;
+    private boolean blockFolded;
+    private boolean blockStrip;
+    private final StringBuilder block = new StringBuilder();
+    private int blankLines;
+
+    private YamlFlattener(Reader in, Map<Object, Object> out) {
+        this.in = in instanceof BufferedReader ? (BufferedReader) in : new BufferedReader(in);
+        this.out = out;
+    }
+
+    /**
+     * Flatten a YAML document
+     * @param in The document, not closed
+     * @param out Where to put the keys
+     * @throws IOException If the document can't be read or is not in the supported subset
+     */
+    static void flatten(Reader in, Map<Object, Object> out) throws IOException {
+        new YamlFlattener(in, out).parse();
+    }
+
+    private void parse() throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            int indent = 0;
+            while (indent < line.length() && line.charAt(indent) == ' ') {
+                indent++;
+            }
+            if (blockPath != null) {
+                if (indent == line.length() || (indent > blockParentIndent && (blockIndent < 0 || indent >= blockIndent))) {
+                    blockLine(line, indent);
+                    continue;
+                }
+                endBlock();
+            }
+            String content = stripComment(line, indent).trim();
+            if (content.isEmpty()) {
+                continue;
+            }
+            if (indent < line.length() && line.charAt(indent) == '\t') {
+                throw error("Tabs can't be used for indentation");
+            }
+            if (indent == 0 && (content.equals("---") || content.startsWith("--- "))) {
+                if (started) {
+                    throw error("Multiple documents are not supported");
+                }
+                started = true;
+                continue;
+            }
+            if (indent == 0 && content.equals("...")) {
+                break;
+            }
+            started = true;
+            node(indent, content);
+        }
+        if (blockPath != null) {
+            endBlock();
+        }
+    }
+
+    /**
+     * A line with a sequence item or a mapping entry, starting at column indent
+     */
+    private void node(int indent, String content) throws IOException {
+        boolean item = content.equals("-") || content.startsWith("- ");
+        if (pending != null) {
+            if (indent > pendingIndent || (item && indent == pendingIndent && !pendingItem)) {
+                stack.add(new Level(indent, pending, item));
+                pending = null;
+                if (item) {
+                    item(indent, content, true);
+                } else {
+                    entry(indent, content);
+                }
+                return;
+            }
+            // key or item without a value is null, a - at the same indent is the next item
+            pending = null;
+        }
+        while (!stack.isEmpty()) {
+            Level top = stack.get(stack.size() - 1);
+            if (top.indent > indent || (top.indent == indent && top.sequence && !item)) {
+                stack.remove(stack.size() - 1);
+            } else {
+                break;
+            }
+        }
+        if (stack.isEmpty()) {
+            if (item) {
+                throw error("A sequence at the top level is not supported");
+            }
+            stack.add(new Level(indent, "", false));
+        }
+        Level top = stack.get(stack.size() - 1);
+        if (top.indent != indent || top.sequence != item) {
+            throw error("Bad indentation");
+        }
+        if (item) {
+            item(indent, content, false);
+        } else {
+            entry(indent, content);
+        }
+    }
+
+    private void item(int indent, String content, boolean first) throws IOException {
+        Level seq = stack.get(stack.size() - 1);
+        if (!first) {
+            seq.index++;
+        }
+        String path = seq.path + "[" + seq.index + "]";
+        String rest = content.substring(1);
+        int offset = 1;
+        while (offset < content.length() && content.charAt(offset) == ' ') {
+            offset++;
+        }
+        rest = rest.trim();
+        if (rest.isEmpty()) {
+            pending = path;
+            pendingIndent = indent;
+            pendingItem = true;
+            return;
+        }
+        int restIndent = indent + offset;
+        if (rest.equals("-") || rest.startsWith("- ")) {
+            throw error("Nested sequences on one line are not supported");
+        }
+        if (keyEnd(rest) >= 0) {
+            stack.add(new Level(restIndent, path, false));
+            entry(restIndent, rest);
+        } else {
+            value(path, rest, indent);
+        }
+    }
+
+    /**
+     * A key: value entry of the mapping on top of the stack
+     */
+    private void entry(int indent, String content) throws IOException {
+        int colon = keyEnd(content);
+        if (colon < 0) {
+            throw error("Expected key: value");
+        }
+        String key = scalar(content.substring(0, colon).trim());
+        if (key == null || key.isEmpty()) {
+            throw error("Empty key");
+        }
+        String base = stack.get(stack.size() - 1).path;
+        String path = base.isEmpty() ? key : base + "." + key;
+        String rest = content.substring(colon + 1).trim();
+        if (rest.isEmpty()) {
+            pending = path;
+            pendingIndent = indent;
+            pendingItem = false;
+            return;
+        }
+        value(path, rest, indent);
+    }
+
+    /**
+     * An inline value: scalar, flow collection, or the header of a block scalar
+     */
+    private void value(String path, String text, int parentIndent) throws IOException {
+        char c = text.charAt(0);
+        if (c == '|' || c == '>') {
+            String header = text.substring(1);
+            if (!header.isEmpty() && !header.equals("-") && !header.equals("+")) {
+                throw error("Unsupported block scalar header " + text);
+            }
+            blockPath = path;
+            blockParentIndent = parentIndent;
+            blockIndent = -1;
+            blockFolded = c == '>';
+            blockStrip = header.equals("-");
+            block.setLength(0);
+            blankLines = 0;
+        } else if (c == '[') {
+            flowSequence(path, text);
+        } else if (c == '{') {
+            flowMapping(path, text);
+        } else {
+            String value = scalar(text);
+            if (value != null) {
+                out.put(path, value);
+            }
+        }
+    }
+
+    private void flowSequence(String path, String text) throws IOException {
+        if (!text.endsWith("]")) {
+            throw error("Flow sequences must end on the same line");
+        }
+        List<String> parts = splitFlow(text.substring(1, text.length() - 1));
+        for (int i = 0; i < parts.size(); i++) {
+            String value = scalar(parts.get(i));
+            if (value != null) {
+                out.put(path + "[" + i + "]", value);
+            }
+        }
+    }
+
+    private void flowMapping(String path, String text) throws IOException {
+        if (!text.endsWith("}")) {
+            throw error("Flow mappings must end on the same line");
+        }
+        for (String part : splitFlow(text.substring(1, text.length() - 1))) {
+            int colon = keyEnd(part);
+            if (colon < 0) {
+                throw error("Expected key: value in flow mapping");
+            }
+            String value = scalar(part.substring(colon + 1).trim());
+            if (value != null) {
+                out.put(path + "." + scalar(part.substring(0, colon).trim()), value);
+            }
+        }
+    }
+
+    /**
+     * Split flow collection content on commas outside of quotes
+     */
+    private List<String> splitFlow(String text) throws IOException {
+        List<String> result = new ArrayList<String>();
+        if (text.trim().isEmpty()) {
+            return result;
+        }
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quote != 0) {
+                if (c == '\\' && quote == '"') {
+                    i++;
+                } else if (c == '\'' && quote == '\'' && i + 1 < text.length() && text.charAt(i + 1) == '\'') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '[' || c == '{') {
+                throw error("Nested flow collections are not supported");
+            } else if (c == ',') {
+                result.add(text.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        String last = text.substring(start).trim();
+        if (!last.isEmpty()) {
+            result.add(last);
+        }
+        return result;
+    }
+
+    private void blockLine(String line, int indent) {
+        if (indent == line.length()) {
+            blankLines++;
+            return;
+        }
+        if (blockIndent < 0) {
+            blockIndent = indent;
+        }
+        if (block.length() > 0 || blankLines > 0) {
+            if (blockFolded && blankLines == 0) {
+                block.append(' ');
+            } else {
+                for (int i = blockFolded ? 1 : 0; i <= blankLines; i++) {
+                    block.append('\n');
+                }
+            }
+        }
+        blankLines = 0;
+        block.append(line, blockIndent, line.length());
+    }
+
+    private void endBlock() {
+        if (!blockStrip && block.length() > 0) {
+            block.append('\n');
+        }
+        out.put(blockPath, block.toString());
+        blockPath = null;
+    }
+
+    /**
+     * Position of the ": " (or trailing ":") that ends a key, outside of quotes, or -1
+     */
+    private static int keyEnd(String text) {
+        int i = 0;
+        if (!text.isEmpty() && (text.charAt(0) == '"' || text.charAt(0) == '\'')) {
+            char quote = text.charAt(0);
+            for (i = 1; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '\\' && quote == '"') {
+                    i++;
+                } else if (c == '\'' && quote == '\'' && i + 1 < text.length() && text.charAt(i + 1) == '\'') {
+                    i++;
+                } else if (c == quote) {
+                    break;
+                }
+            }
+        }
+        for (; i < text.length(); i++) {
+            if (text.charAt(i) == ':' && (i + 1 == text.length() || text.charAt(i + 1) == ' ')) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove a # comment, which starts at the beginning of the content or after a space, outside of quotes
+     */
+    private static String stripComment(String line, int from) {
+        char quote = 0;
+        for (int i = from; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == '\\' && quote == '"') {
+                    i++;
+                } else if (c == '\'' && quote == '\'' && i + 1 < line.length() && line.charAt(i + 1) == '\'') {
+                    i++;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if ((c == '"' || c == '\'') && (i == from || " :-[{,".indexOf(line.charAt(i - 1)) >= 0)) {
+                quote = c;
+            } else if (c == '#' && (i == from || line.charAt(i - 1) == ' ')) {
+                return line.substring(0, i);
+            }
+        }
+        return line;
+    }
+
+    /**
+     * The value of a scalar
+     * @return The value, or null for null
+     */
+    private String scalar(String text) throws IOException {
+        if (text.isEmpty() || text.equals("~") || text.equals("null") || text.equals("Null") || text.equals("NULL")) {
+            return null;
+        }
+        char c = text.charAt(0);
+        if (c == '\'') {
+            if (text.length() < 2 || text.charAt(text.length() - 1) != '\'') {
+                throw error("Unterminated single quoted string");
+            }
+            return text.substring(1, text.length() - 1).replace("''", "'");
+        }
+        if (c == '"') {
+            return doubleQuoted(text);
+        }
+        if (c == '&' || c == '*' || c == '!') {
+            throw error("Anchors, aliases and tags are not supported");
+        }
+        return text;
+    }
+
+    private String doubleQuoted(String text) throws IOException {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                if (i != text.length() - 1) {
+                    throw error("Unexpected content after quoted string");
+                }
+                return sb.toString();
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i == text.length()) {
+                break;
+            }
+            c = text.charAt(i);
+            switch (c) {
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case '0':
+                    sb.append('\0');
+                    break;
+                case 'u':
+                    if (i + 4 >= text.length()) {
+                        throw error("Invalid \\u escape");
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(text.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Invalid \\u escape");
+                    }
+                    i += 4;
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        throw error("Unterminated double quoted string");
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at line " + lineNumber);
+    }
+}
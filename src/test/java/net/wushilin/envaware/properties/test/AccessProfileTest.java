@@ -0,0 +1,107 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.AccessProfile;
+import net.wushilin.props.EnvAwareProperties;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessProfileTest {
+    private static EnvAwareProperties.Builder builder() {
+        return EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment().disableSysProperties()
+                .override("db.url", "jdbc://${db.host}/app")
+                .override("db.host", "localhost")
+                .override("db.user", "app")
+                .override("cache.size", "100")
+                .override("legacy.flag", "true");
+    }
+
+    @Test
+    public void testCountsReads() {
+        EnvAwareProperties p = builder().profileAccess(1).build();
+        for (int i = 0; i < 10; i++) {
+            p.getProperty("cache.size");
+        }
+        p.getProperty("db.user");
+        p.getProperty("db.user", "x");
+        p.getProperty("missing");
+        assertEquals("jdbc://localhost/app", p.getPropertyResolve("db.url"));
+
+        AccessProfile profile = p.accessProfile();
+        assertEquals(10, profile.getReads("cache.size"));
+        assertEquals(2, profile.getReads("db.user"));
+        assertEquals(1, profile.getReads("db.url"));
+        assertEquals(0, profile.getReads("missing"));
+        assertEquals(13, profile.getTotalReads());
+
+        List<Map.Entry<String, Long>> top = profile.top(2);
+        assertEquals(2, top.size());
+        assertEquals("cache.size", top.get(0).getKey());
+        assertEquals(10L, (long) top.get(0).getValue());
+        assertEquals("db.user", top.get(1).getKey());
+        assertEquals(3, profile.top(10).size());
+
+        assertEquals(new TreeSet<String>(Arrays.asList("db.host", "legacy.flag")), profile.neverRead());
+
+        SortedMap<String, Double> rates = profile.ratesByPrefix(1);
+        assertEquals(Arrays.asList("cache", "db", "legacy"), Arrays.asList(rates.keySet().toArray()));
+        assertTrue(rates.get("cache") > rates.get("db"));
+        assertEquals(0.0d, rates.get("legacy"), 0.0d);
+        assertTrue(profile.ratesByPrefix(5).containsKey("db.user"));
+    }
+
+    @Test
+    public void testStartAndStop() {
+        EnvAwareProperties p = builder().build();
+        assertThrows(IllegalStateException.class, p::accessProfile);
+        p.getProperty("db.user");
+        p.startAccessProfiling(1);
+        p.getProperty("cache.size");
+        assertEquals(0, p.accessProfile().getReads("db.user"));
+        assertEquals(1, p.accessProfile().getReads("cache.size"));
+        p.stopAccessProfiling();
+        assertThrows(IllegalStateException.class, p::accessProfile);
+        assertThrows(IllegalArgumentException.class, () -> p.startAccessProfiling(0));
+    }
+
+    @Test
+    public void testSampledCountsAreEstimates() throws Exception {
+        EnvAwareProperties p = builder().profileAccess(16).build();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    p.getProperty("cache.size");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread next : threads) {
+            next.join();
+        }
+        AccessProfile profile = p.accessProfile();
+        assertEquals(16, profile.getSampleEvery());
+        long reads = profile.getReads("cache.size");
+        assertTrue(reads > 360_000 && reads < 440_000, "estimate " + reads);
+        // the first read is exact, the others are sampled
+        assertEquals(1, reads % 16);
+    }
+
+    @Test
+    public void testSampledProfileSeesRareKeys() {
+        EnvAwareProperties p = builder().profileAccess(1000).build();
+        p.getProperty("cache.size");
+        p.query("**");
+        p.partition("cache");
+        AccessProfile profile = p.accessProfile();
+        assertEquals(1, profile.getReads("cache.size"));
+        assertFalse(profile.neverRead().contains("cache.size"));
+        assertEquals(1, profile.getTotalReads());
+    }
+}
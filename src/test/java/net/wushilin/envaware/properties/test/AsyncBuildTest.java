@@ -0,0 +1,129 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.ConfigSchema;
+import net.wushilin.props.DeferredProperties;
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.PropertySource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncBuildTest {
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @AfterEach
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A source that loads when the test says so
+     */
+    private static class Pending implements PropertySource {
+        private final String name;
+        private final CompletableFuture<Properties> future = new CompletableFuture<Properties>();
+
+        Pending(String name) {
+            this.name = name;
+        }
+
+        void complete(String... pairs) {
+            Properties p = new Properties();
+            for (int i = 0; i < pairs.length; i += 2) {
+                p.setProperty(pairs[i], pairs[i + 1]);
+            }
+            future.complete(p);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public CompletableFuture<Properties> load(java.util.concurrent.Executor executor) {
+            return future;
+        }
+    }
+
+    private static EnvAwareProperties.Builder builder() {
+        return EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment().disableSysProperties();
+    }
+
+    @Test
+    public void testBuildAsync() throws Exception {
+        Pending slow = new Pending("slow");
+        CompletableFuture<EnvAwareProperties> future = builder()
+                .thenAddSource(slow)
+                .buildAsync(executor);
+        assertFalse(future.isDone());
+        slow.complete("a", "1", "b", "${a}-2");
+        EnvAwareProperties p = future.get(10, TimeUnit.SECONDS);
+        assertEquals("1-2", p.getProperty("b"));
+    }
+
+    @Test
+    public void testReadsOnlyWaitForTheSourcesThatDecideTheKey() throws Exception {
+        Pending fast = new Pending("fast");
+        Pending slow = new Pending("slow");
+        DeferredProperties config = builder()
+                .override("name", "app")
+                .thenAddSource(fast, slow)
+                .buildDeferred(executor);
+        fast.complete("url", "http://${name}", "port", "80");
+
+        assertFalse(config.isDone());
+        assertEquals("app", config.getProperty("name"));
+        assertEquals("http://app", config.getProperty("url"));
+        assertEquals("80", config.getProperty("port"));
+
+        // a key only the slow source can decide waits for it
+        Future<String> missing = executor.submit(() -> config.getProperty("slow.only", "none"));
+        assertThrows(TimeoutException.class, () -> missing.get(200, TimeUnit.MILLISECONDS));
+        slow.complete("slow.only", "here", "port", "8080");
+        assertEquals("here", missing.get(10, TimeUnit.SECONDS));
+
+        EnvAwareProperties p = config.join();
+        assertTrue(config.isDone());
+        assertEquals("80", p.getProperty("port"));
+        assertEquals("http://app", config.getProperty("url"));
+    }
+
+    @Test
+    public void testBuilderCanChangeAfterBuildStarts() {
+        EnvAwareProperties.Builder builder = builder().override("a", "1");
+        DeferredProperties config = builder.buildDeferred(executor);
+        builder.override("a", "2");
+        assertEquals("1", config.join().getProperty("a"));
+        assertEquals("2", builder.build().getProperty("a"));
+    }
+
+    @Test
+    public void testFailures() {
+        Pending broken = new Pending("broken");
+        DeferredProperties config = builder()
+                .override("a", "1")
+                .thenAddSource(broken)
+                .buildDeferred(executor);
+        broken.future.completeExceptionally(new IOException("unreachable"));
+        assertEquals("1", config.getProperty("a"));
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> config.getProperty("b"));
+        assertEquals("broken: unreachable", ex.getMessage());
+        ex = assertThrows(IllegalArgumentException.class, config::join);
+        assertEquals("broken: unreachable", ex.getMessage());
+
+        ConfigSchema schema = ConfigSchema.newBuilder().required("db.url").build();
+        DeferredProperties invalid = builder().override("a", "1").validate(schema).buildDeferred(executor);
+        assertThrows(ConfigSchema.ValidationException.class, invalid::join);
+    }
+}
@@ -0,0 +1,148 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinderTest {
+
+    public enum Mode {
+        FAST, SAFE
+    }
+
+    public interface PoolConfig {
+        int getMaxSize();
+
+        boolean isFair();
+
+        long timeoutMs();
+
+        default String describe(String prefix) {
+            return prefix + getMaxSize() + (isFair() ? " fair" : "");
+        }
+    }
+
+    public interface Node {
+        String getName();
+
+        Node getNext();
+
+        Node getOther();
+    }
+
+    public interface Server {
+        String getHost();
+
+        PoolConfig getConnectionPool();
+    }
+
+    public static class DbConfig {
+        private String url;
+        private int port = 5432;
+        private Mode mode;
+        public BigDecimal ratio;
+        public Path dataDir;
+        private PoolConfig pool;
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public void setPort(int port) {
+            this.port = port;
+        }
+
+        public void setMode(Mode mode) {
+            this.mode = mode;
+        }
+
+        public void setPool(PoolConfig pool) {
+            this.pool = pool;
+        }
+    }
+
+    private static EnvAwareProperties props() {
+        return EnvAwareProperties.newBuilder()
+                .disableAllJProperties()
+                .override("db.host", "db1")
+                .override("db.url", "jdbc:postgresql://${db.host}/app")
+                .override("db.mode", "SAFE")
+                .override("db.ratio", "0.75")
+                .override("db.data-dir", "/var/db")
+                .override("db.pool.max-size", "20")
+                .override("db.pool.fair", "true")
+                .override("db.pool.timeout.ms", "1500")
+                .build();
+    }
+
+    @Test
+    void testBindPojo() {
+        DbConfig db = props().bind("db", DbConfig.class);
+        assertEquals("jdbc:postgresql://db1/app", db.url);
+        assertEquals(5432, db.port);
+        assertEquals(Mode.SAFE, db.mode);
+        assertEquals(new BigDecimal("0.75"), db.ratio);
+        assertEquals(Paths.get("/var/db"), db.dataDir);
+        assertEquals(20, db.pool.getMaxSize());
+        assertTrue(db.pool.isFair());
+        assertEquals(1500L, db.pool.timeoutMs());
+    }
+
+    @Test
+    void testBindInterface() {
+        PoolConfig pool = props().bind("db.pool.", PoolConfig.class);
+        assertEquals(20, pool.getMaxSize());
+        PoolConfig missing = props().bind("nothing", PoolConfig.class);
+        assertEquals(0, missing.getMaxSize());
+        assertFalse(missing.isFair());
+        assertTrue(pool.toString().contains("maxSize=20"));
+    }
+
+    @Test
+    void testConversionError() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().override("db.port", "not-a-number").build();
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> p.bind("db", DbConfig.class));
+        assertTrue(ex.getMessage().contains("db.port"));
+    }
+
+    @Test
+    void testDefaultMethods() {
+        PoolConfig pool = props().bind("db.pool", PoolConfig.class);
+        assertEquals("pool 20 fair", pool.describe("pool "));
+        assertEquals(pool, pool);
+        assertNotEquals(pool, props().bind("db.pool", PoolConfig.class));
+    }
+
+    @Test
+    void testNestedPrefixes() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .disableAllJProperties()
+                .override("s.host", "h")
+                .override("s.connection-pool.max-size", "7")
+                .override("t.host", "h2")
+                .build();
+        assertEquals(7, p.bind("s", Server.class).getConnectionPool().getMaxSize());
+        assertNull(p.bind("t", Server.class).getConnectionPool());
+    }
+
+    @Test
+    void testSelfReferencingTypes() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .disableAllJProperties()
+                .override("n.name", "first")
+                .build();
+        Node node = p.bind("n", Node.class);
+        assertEquals("first", node.getName());
+        assertNull(node.getNext());
+        assertNull(node.getOther());
+
+        p.setProperty("n.next.name", "second");
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> p.bind("n", Node.class));
+        assertTrue(ex.getMessage().contains("contains itself"));
+    }
+}
@@ -0,0 +1,146 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.PropertySource;
+import net.wushilin.props.PropertySources;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClasspathResourcesTest {
+    private static final String NAME = "META-INF/app-defaults.properties";
+    private Path root;
+    private URLClassLoader loader;
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setup() throws IOException {
+        root = Files.createTempDirectory("cpres");
+        executor = Executors.newFixedThreadPool(4);
+        List<URL> urls = new ArrayList<URL>();
+        for (int i = 0; i < 20; i++) {
+            File jar = root.resolve("lib" + i + ".jar").toFile();
+            try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar))) {
+                out.putNextEntry(new ZipEntry(NAME));
+                out.write(("owner=lib" + i + "\nlib" + i + "=yes\n").getBytes(StandardCharsets.ISO_8859_1));
+                out.closeEntry();
+            }
+            urls.add(jar.toURI().toURL());
+        }
+        Path dir = root.resolve("classes");
+        Files.createDirectories(dir.resolve("META-INF"));
+        Files.write(dir.resolve(NAME), "dir=yes\n".getBytes(StandardCharsets.ISO_8859_1));
+        urls.add(dir.toUri().toURL());
+        loader = new URLClassLoader(urls.toArray(new URL[0]), null);
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        executor.shutdownNow();
+        loader.close();
+        Files.walk(root).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    @Test
+    void testAllResourcesMergedInClasspathOrder() {
+        Properties p = PropertySources.classpathResources(loader, NAME).load(executor).join();
+        assertEquals("lib0", p.getProperty("owner"));
+        for (int i = 0; i < 20; i++) {
+            assertEquals("yes", p.getProperty("lib" + i));
+        }
+        assertEquals("yes", p.getProperty("dir"));
+        assertEquals(22, p.size());
+    }
+
+    @Test
+    void testCachedUntilClasspathChanges() throws IOException {
+        PropertySource first = PropertySources.classpathResources(loader, "/" + NAME);
+        Properties p1 = first.load(executor).join();
+        Properties p2 = PropertySources.classpathResources(loader, NAME).load(executor).join();
+        assertSame(p1, p2);
+
+        Path resource = root.resolve("classes").resolve(NAME);
+        Files.write(resource, "dir=changed\nmore=1\n".getBytes(StandardCharsets.ISO_8859_1));
+        resource.toFile().setLastModified(System.currentTimeMillis() + 5000);
+        Properties p3 = first.load(executor).join();
+        assertNotSame(p1, p3);
+        assertEquals("changed", p3.getProperty("dir"));
+    }
+
+    @Test
+    void testGlob() throws IOException {
+        Path dir = root.resolve("classes").resolve("META-INF").resolve("defaults");
+        Files.createDirectories(dir.resolve("sub"));
+        Files.write(dir.resolve("b.properties"), "dir=b\nb=yes\n".getBytes(StandardCharsets.ISO_8859_1));
+        Files.write(dir.resolve("a.properties"), "dir=a\n".getBytes(StandardCharsets.ISO_8859_1));
+        Files.write(dir.resolve("sub").resolve("c.properties"), "c=yes\n".getBytes(StandardCharsets.ISO_8859_1));
+        Properties p = PropertySources.classpathResources(loader, "META-INF/*.properties").load(executor).join();
+        assertEquals("lib0", p.getProperty("owner"));
+        assertEquals("yes", p.getProperty("dir"));
+        assertNull(p.getProperty("b"));
+        Properties defaults = PropertySources.classpathResources(loader, "META-INF/defaults/*.properties")
+                .load(executor).join();
+        // name order within one directory
+        assertEquals("a", defaults.getProperty("dir"));
+        assertEquals("yes", defaults.getProperty("b"));
+        assertNull(defaults.getProperty("c"));
+        Properties all = PropertySources.classpathResources(loader, "**/c.propert?es").load(executor).join();
+        assertEquals("yes", all.getProperty("c"));
+        assertEquals(1, all.size());
+    }
+
+    @Test
+    void testEnumeratedOnExecutor() throws Exception {
+        final List<Thread> threads = new ArrayList<Thread>();
+        ClassLoader recording = new ClassLoader(loader) {
+            @Override
+            public java.util.Enumeration<URL> getResources(String name) throws IOException {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread());
+                }
+                return super.getResources(name);
+            }
+        };
+        PropertySource source = PropertySources.classpathResources(recording, NAME);
+        Properties p = source.load(executor).join();
+        assertEquals("lib0", p.getProperty("owner"));
+        assertFalse(threads.isEmpty());
+        assertFalse(threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    void testBuilderAndMissingResource() {
+        ClassLoader previous = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(loader);
+        try {
+            EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                    .disableAllJProperties()
+                    .override("owner", "app")
+                    .thenAddClasspathResources(NAME, "META-INF/none.properties")
+                    .build();
+            assertEquals("app", p.getProperty("owner"));
+            assertEquals("yes", p.getProperty("lib19"));
+        } finally {
+            Thread.currentThread().setContextClassLoader(previous);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.PropertySource;
+import net.wushilin.props.PropertySources;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hammers mutation and resolution from many threads and checks that every observed result is consistent.
+ * Run with: gradle stressTest -PstressSeconds=30
+ */
+@Tag("stress")
+public class ConcurrencyStressTest {
+    private static final long SECONDS = Long.getLong("stress.seconds", 5);
+
+    /**
+     * One unit of work, repeated until the deadline. Return a message to report a violation.
+     */
+    private interface Actor {
+        String act(long iteration) throws Exception;
+    }
+
+    /**
+     * Runs each actor on its own thread until the deadline, and fails with the first violation seen
+     */
+    private static void hammer(Actor... actors) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SECONDS);
+        final AtomicReference<String> violation = new AtomicReference<String>();
+        final AtomicLong operations = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(actors.length);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (final Actor actor : actors) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long i = 0;
+                        while (System.nanoTime() < deadline && violation.get() == null) {
+                            String error = actor.act(i++);
+                            if (error != null) {
+                                violation.compareAndSet(null, error);
+                            }
+                        }
+                        operations.addAndGet(i);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> next : futures) {
+                next.get(SECONDS + 60, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertNull(violation.get());
+        assertTrue(operations.get() > 0);
+    }
+
+    private static EnvAwareProperties isolated() {
+        return EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment().disableSysProperties().build();
+    }
+
+    private static Map<String, String> pair(String k1, String k2, String value) {
+        Map<String, String> result = new HashMap<String, String>();
+        result.put(k1, value);
+        result.put(k2, value);
+        return result;
+    }
+
+    @Test
+    void testResolvedValueIsNeverTorn() throws Exception {
+        final EnvAwareProperties p = isolated();
+        p.putAll(pair("a", "b", "0"));
+        p.setProperty("combo", "${a}:${b}");
+        Actor writer = i -> {
+            p.putAll(pair("a", "b", Long.toString(i)));
+            return null;
+        };
+        Actor reader = i -> {
+            String v = p.getPropertyResolve("combo");
+            String[] parts = v.split(":");
+            return parts.length == 2 && parts[0].equals(parts[1]) ? null : "torn resolve: " + v;
+        };
+        hammer(writer, writer, reader, reader, reader, reader);
+    }
+
+    @Test
+    void testResolvedKeyIsNeverTorn() throws Exception {
+        final EnvAwareProperties p = isolated();
+        p.setProperty("v.0", "0");
+        p.setProperty("sel", "0");
+        Actor writer = i -> {
+            synchronized (p) {
+                long next = Long.parseLong(p.getProperty("sel")) + 1;
+                p.setProperty("v." + next, Long.toString(next));
+                p.setProperty("sel", Long.toString(next));
+                p.remove("v." + (next - 1));
+            }
+            return null;
+        };
+        Actor reader = i -> {
+            String v = p.getPropertyResolve("v.${sel}");
+            return v != null ? null : "key resolved against a stale selector";
+        };
+        hammer(writer, reader, reader, reader);
+    }
+
+    public static class Pair {
+        public String x;
+        public String y;
+    }
+
+    @Test
+    void testPartitionMergeAndBindSeeSnapshots() throws Exception {
+        final EnvAwareProperties p = isolated();
+        p.putAll(pair("p.x", "p.y", "0"));
+        final EnvAwareProperties other = isolated();
+        other.setProperty("from.other", "yes");
+        Actor writer = i -> {
+            p.putAll(pair("p.x", "p.y", Long.toString(i)));
+            return null;
+        };
+        Actor partitioner = i -> {
+            EnvAwareProperties part = p.partition("p");
+            return part.getProperty("x").equals(part.getProperty("y")) ? null : "torn partition: " + part;
+        };
+        Actor merger = i -> {
+            EnvAwareProperties merged = p.merge(other);
+            if (!"yes".equals(merged.getProperty("from.other"))) {
+                return "merge lost keys";
+            }
+            return merged.getProperty("p.x").equals(merged.getProperty("p.y")) ? null : "torn merge";
+        };
+        Actor binder = i -> {
+            Pair bound = p.bind("p", Pair.class);
+            return bound.x.equals(bound.y) ? null : "torn bind: " + bound.x + " " + bound.y;
+        };
+        hammer(writer, writer, partitioner, merger, binder);
+    }
+
+    @Test
+    void testConcurrentBuildsAreIndependent() throws Exception {
+        final PropertySource shared = PropertySources.cached(PropertySources.file(new File("testdata/resolve.properties")), 100);
+        Actor builder = i -> {
+            EnvAwareProperties built = EnvAwareProperties.newBuilder()
+                    .override("id", Long.toString(i))
+                    .override("ref", "${id}/${k3}/${user.home}")
+                    .thenAddSource(shared)
+                    .build();
+            String expected = i + "/k3test123/" + System.getProperty("user.home");
+            return expected.equals(built.getProperty("ref")) ? null : "bad build: " + built.getProperty("ref");
+        };
+        hammer(builder, builder, builder, builder);
+    }
+
+    @Test
+    void testOverlaysStayOnTheirThread() throws Exception {
+        final EnvAwareProperties p = isolated();
+        p.setProperty("tenant", "none");
+        p.setProperty("label", "${tenant}-label");
+        Actor scoped = i -> {
+            final String me = Thread.currentThread().getName() + "#" + i;
+            return p.callWithOverlay(Collections.singletonMap("tenant", me), () -> {
+                String label = p.getPropertyResolve("label");
+                return (me + "-label").equals(label) ? null : "overlay leaked: " + label + " expected " + me;
+            });
+        };
+        Actor plain = i -> "none".equals(p.getProperty("tenant")) ? null : "overlay visible outside scope";
+        hammer(scoped, scoped, scoped, plain);
+    }
+
+    @Test
+    void testSubscribersSeeEveryChangedKey() throws Exception {
+        final EnvAwareProperties p = isolated();
+        final Set<String> notified = ConcurrentHashMap.newKeySet();
+        final Set<String> written = ConcurrentHashMap.newKeySet();
+        p.subscribe("s.", (source, keys) -> notified.addAll(keys));
+        Actor writer = i -> {
+            String key = "s." + Thread.currentThread().getId() + "." + (i % 1000);
+            p.setProperty(key, Long.toString(i));
+            written.add(key);
+            return null;
+        };
+        hammer(writer, writer, writer);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!notified.containsAll(written) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(written, notified);
+    }
+}
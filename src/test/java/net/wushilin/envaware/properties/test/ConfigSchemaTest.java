@@ -0,0 +1,122 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.ConfigSchema;
+import net.wushilin.props.EnvAwareProperties;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConfigSchemaTest {
+    private static final ConfigSchema SCHEMA = ConfigSchema.newBuilder()
+            .required("db.url", "db.user")
+            .type("db.port", Integer.class).range("db.port", 1, 65535)
+            .type("*.timeout.ms", Long.class)
+            .required("*.timeout.ms")
+            .pattern("env", "dev|test|prod")
+            .range("ratio", 0, 1.5)
+            .build();
+
+    private static EnvAwareProperties.Builder builder() {
+        return EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment().disableSysProperties();
+    }
+
+    @Test
+    void testValidConfigBuilds() {
+        EnvAwareProperties p = builder()
+                .override("db.url", "jdbc:x")
+                .override("db.user", "sa")
+                .override("db.port", "5432")
+                .override("http.timeout.ms", "100")
+                .override("env", "prod")
+                .override("ratio", "1.25")
+                .validate(SCHEMA)
+                .build();
+        assertEquals("5432", p.getProperty("db.port"));
+    }
+
+    @Test
+    void testAllErrorsReportedAtOnce() {
+        ConfigSchema.ValidationException ex = assertThrows(ConfigSchema.ValidationException.class, () -> builder()
+                .override("db.url", "jdbc:x")
+                .override("db.port", "99999")
+                .override("http.timeout.ms", "soon")
+                .override("grpc.timeout.ms", "5")
+                .override("env", "staging")
+                .override("ratio", "x")
+                .validate(SCHEMA)
+                .build());
+        List<String> errors = ex.getErrors();
+        assertEquals(5, errors.size(), errors.toString());
+        assertTrue(errors.contains("db.user: required"));
+        assertTrue(errors.contains("db.port: '99999' is greater than 65535"));
+        assertTrue(errors.contains("http.timeout.ms: 'soon' is not a valid Long"));
+        assertTrue(errors.contains("env: 'staging' does not match dev|test|prod"));
+        assertTrue(errors.contains("ratio: 'x' is not a number"));
+        assertTrue(ex.getMessage().contains("5 error(s)"));
+    }
+
+    @Test
+    void testPlaceholdersAreValidatedResolved() {
+        assertThrows(IllegalArgumentException.class, () -> builder()
+                .override("db.url", "jdbc:x")
+                .override("db.user", "sa")
+                .override("a.timeout.ms", "${base}0")
+                .override("base", "ten")
+                .validate(SCHEMA)
+                .build());
+    }
+
+    @Test
+    void testParallelValidationOfLargeSchema() {
+        ConfigSchema.Builder b = ConfigSchema.newBuilder();
+        Properties p = new Properties();
+        for (int i = 0; i < 1000; i++) {
+            b.type("k" + i, Integer.class).range("k" + i, 0, 10);
+            p.setProperty("k" + i, i % 100 == 0 ? "11" : "5");
+        }
+        ConfigSchema schema = b.build();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<String> errors = schema.validate(p, pool);
+            assertEquals(10, errors.size());
+            assertEquals("k0: '11' is greater than 10", errors.get(0));
+            assertEquals("k900: '11' is greater than 10", errors.get(9));
+            // nothing is remembered between validations
+            p.setProperty("k1", "12");
+            p.setProperty("k0", "1");
+            errors = schema.validate(p, pool);
+            assertEquals(10, errors.size());
+            assertEquals("k1: '12' is greater than 10", errors.get(0));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void testParallelValidationOfOnePattern() {
+        ConfigSchema schema = ConfigSchema.newBuilder()
+                .type("svc.*.timeout.ms", Long.class).range("svc.*.timeout.ms", 0, 60000)
+                .required("db.*.url")
+                .build();
+        Properties p = new Properties();
+        for (int i = 0; i < 5000; i++) {
+            p.setProperty("svc.s" + i + ".timeout.ms", i == 1234 ? "forever" : "30000");
+            p.setProperty("svc.s" + i + ".name", "not checked");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<String> errors = schema.validate(p, pool);
+            assertEquals(2, errors.size(), errors.toString());
+            assertEquals("svc.s1234.timeout.ms: 'forever' is not a valid Long", errors.get(0));
+            assertEquals("db.*.url: required, no key matches", errors.get(1));
+            assertEquals(errors, schema.validate(p));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
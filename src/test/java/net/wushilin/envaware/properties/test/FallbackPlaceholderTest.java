@@ -0,0 +1,87 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FallbackPlaceholderTest {
+
+    private static EnvAwareProperties.Builder isolated() {
+        return EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment().disableSysProperties();
+    }
+
+    @Test
+    void testDefaultValue() {
+        EnvAwareProperties p = isolated()
+                .override("host", "db1")
+                .override("empty", "")
+                .override("a", "${host:-localhost}")
+                .override("b", "${port:-5432}")
+                .override("c", "${empty:-fallback}")
+                .override("d", "${port:-}")
+                .build();
+        assertEquals("db1", p.getProperty("a"));
+        assertEquals("5432", p.getProperty("b"));
+        assertEquals("fallback", p.getProperty("c"));
+        assertEquals("", p.getProperty("d"));
+    }
+
+    @Test
+    void testNestedDefaults() {
+        EnvAwareProperties p = isolated()
+                .override("second", "two")
+                .override("name", "second")
+                .override("a", "${first:-${second:-none}}")
+                .override("b", "${first:-${third:-none}}")
+                .override("c", "${first:-x${${name}}y}")
+                .override("d", "url=${scheme:-http}://${host:-localhost}:${port:-80}")
+                .build();
+        assertEquals("two", p.getProperty("a"));
+        assertEquals("none", p.getProperty("b"));
+        assertEquals("xtwoy", p.getProperty("c"));
+        assertEquals("url=http://localhost:80", p.getProperty("d"));
+    }
+
+    @Test
+    void testUnusedFallbackIsNotEvaluated() {
+        EnvAwareProperties p = isolated()
+                .strictResolution()
+                .override("present", "yes")
+                .override("a", "${present:-${missing:?never evaluated}}")
+                .build();
+        assertEquals("yes", p.getProperty("a"));
+    }
+
+    @Test
+    void testRequiredValue() {
+        EnvAwareProperties p = isolated()
+                .override("a", "${db.url:?db.url must be set}")
+                .build();
+        assertEquals("${db.url:?db.url must be set}", p.getProperty("a"));
+        assertTrue(p.getResolutionDiagnostics().get(0).contains("db.url must be set"));
+
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> isolated()
+                .strictResolution()
+                .override("a", "${db.url:?db.url must be set}")
+                .build());
+        assertTrue(ex.getMessage().contains("db.url must be set"));
+    }
+
+    @Test
+    void testUnclosedFallbackIsLiteral() {
+        EnvAwareProperties p = isolated().override("a", "${missing:-abc").build();
+        assertEquals("${missing:-abc", p.getProperty("a"));
+    }
+
+    @Test
+    void testGetPropertyResolveWithFallback() {
+        EnvAwareProperties p = isolated()
+                .override("env", "prod")
+                .override("prod.url", "http://prod")
+                .override("dev.url", "http://dev")
+                .build();
+        assertEquals("http://prod", p.getPropertyResolve("${env:-dev}.url"));
+        assertEquals("http://dev", p.getPropertyResolve("${region:-dev}.url"));
+    }
+}
@@ -0,0 +1,96 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.KeyQuery;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeyQueryTest {
+    private static EnvAwareProperties props() {
+        return EnvAwareProperties.newBuilder()
+                .disableAllJProperties().disableEnvironment().disableSysProperties()
+                .override("http.timeout.ms", "100")
+                .override("db.timeout.ms", "200")
+                .override("db.pool.timeout.ms", "300")
+                .override("service.users.endpoint", "http://users")
+                .override("service.orders.endpoint", "http://orders")
+                .override("service.orders.v2.endpoint", "http://orders/v2")
+                .override("service.orders.timeout", "5")
+                .override("timeout.ms", "1")
+                .override("plain", "x")
+                .build();
+    }
+
+    @Test
+    void testQuery() {
+        EnvAwareProperties p = props();
+        assertEquals(Arrays.asList("db.timeout.ms", "http.timeout.ms"), new ArrayList<String>(p.query("*.timeout.ms").keySet()));
+        assertEquals("http://users", p.query("service.*.endpoint").get("service.users.endpoint"));
+        assertEquals(2, p.query("service.*.endpoint").size());
+        assertEquals(3, p.query("service.**.endpoint").size());
+        assertEquals(4, p.query("**.timeout.ms").size());
+        assertEquals(2, p.query("service.ord?rs.*").size());
+        assertEquals(2, p.query("*.time*.*").size());
+        assertEquals(9, p.query("**").size());
+        assertEquals(1, p.query("plain").size());
+        assertTrue(p.query("nothing.*").isEmpty());
+    }
+
+    @Test
+    void testIndexFollowsUpdates() {
+        EnvAwareProperties p = props();
+        KeyQuery q = KeyQuery.compile("*.timeout.ms");
+        assertEquals(2, p.query(q).size());
+        p.setProperty("grpc.timeout.ms", "7");
+        assertEquals("7", p.query(q).get("grpc.timeout.ms"));
+        p.remove("http.timeout.ms");
+        p.putAll(Collections.singletonMap("kafka.timeout.ms", "8"));
+        assertEquals(new TreeSet<String>(Arrays.asList("db.timeout.ms", "grpc.timeout.ms", "kafka.timeout.ms")), p.query(q).keySet());
+        p.setProperty("db.timeout.ms", "250");
+        assertEquals("250", p.query(q).get("db.timeout.ms"));
+        p.putIfAbsent("mq.timeout.ms", "9");
+        p.keySet().remove("grpc.timeout.ms");
+        p.compute("a.timeout.ms.extra", (k, v) -> "x");
+        assertEquals(new TreeSet<String>(Arrays.asList("db.timeout.ms", "kafka.timeout.ms", "mq.timeout.ms")), p.query(q).keySet());
+        assertEquals(1, p.query("a.**").size());
+        p.remove("a.timeout.ms.extra");
+        assertTrue(p.query("a.**").isEmpty());
+        p.clear();
+        assertTrue(p.query(q).isEmpty());
+    }
+
+    @Test
+    void testMatchesAgreesWithIndex() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .disableAllJProperties().disableEnvironment().disableSysProperties().build();
+        String[] segs = {"a", "b", "ab", "ba", ""};
+        Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = 1 + random.nextInt(4);
+            for (int j = 0; j < n; j++) {
+                sb.append(j == 0 ? "" : ".").append(segs[random.nextInt(segs.length)]);
+            }
+            p.setProperty(sb.toString(), "v");
+        }
+        String[] patternSegs = {"a", "*", "**", "?", "a*", "*b", ""};
+        for (int i = 0; i < 300; i++) {
+            StringBuilder sb = new StringBuilder();
+            int n = 1 + random.nextInt(4);
+            for (int j = 0; j < n; j++) {
+                sb.append(j == 0 ? "" : ".").append(patternSegs[random.nextInt(patternSegs.length)]);
+            }
+            KeyQuery q = KeyQuery.compile(sb.toString());
+            Set<String> expected = new TreeSet<String>();
+            for (String key : p.stringPropertyNames()) {
+                if (q.matches(key)) {
+                    expected.add(key);
+                }
+            }
+            assertEquals(expected, p.query(q).keySet(), sb.toString());
+        }
+    }
+}
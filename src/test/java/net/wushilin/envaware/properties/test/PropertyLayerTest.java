@@ -0,0 +1,77 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.PropertyLayer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PropertyLayerTest {
+
+    @AfterEach
+    void cleanup() {
+        System.clearProperty("layer.test.value");
+    }
+
+    @Test
+    void testSharedLayersAreSingletons() {
+        assertSame(PropertyLayer.environment(), PropertyLayer.environment());
+        assertSame(PropertyLayer.systemProperties(), PropertyLayer.systemProperties());
+    }
+
+    @Test
+    void testSystemPropertiesLayerIsLive() {
+        System.setProperty("layer.test.value", "first");
+        EnvAwareProperties p1 = EnvAwareProperties.newBuilder().override("k", "${layer.test.value}").build();
+        System.setProperty("layer.test.value", "second");
+        EnvAwareProperties p2 = EnvAwareProperties.newBuilder().override("k", "${layer.test.value}").build();
+        assertEquals("first", p1.getProperty("k"));
+        assertEquals("second", p2.getProperty("k"));
+    }
+
+    @Test
+    void testOnlyOwnKeysAreStored() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().override("home", "${user.home}").build();
+        assertEquals(1, p.size());
+        assertEquals(System.getProperty("user.home"), p.getProperty("home"));
+    }
+
+    @Test
+    void testSnapshotIsImmutable() {
+        Properties source = new Properties();
+        source.setProperty("a", "1");
+        PropertyLayer layer = PropertyLayer.of("test", source);
+        source.setProperty("a", "2");
+        assertEquals("1", layer.getProperty("a"));
+        assertThrows(UnsupportedOperationException.class, () -> layer.keys().add("b"));
+    }
+
+    @Test
+    void testOptionalFileLayerIsCached() {
+        PropertyLayer first = PropertyLayer.fromOptionalFile(new File("testdata/test1.properties"));
+        PropertyLayer second = PropertyLayer.fromOptionalFile(new File("testdata/test1.properties"));
+        assertSame(first, second);
+        assertEquals("test1.v1", first.getProperty("test1.k1"));
+        assertTrue(PropertyLayer.fromOptionalFile(new File("testdata/missing.properties")).keys().isEmpty());
+    }
+
+    @Test
+    void testMergeStacksBothInstances() {
+        EnvAwareProperties high = EnvAwareProperties.newBuilder().disableAllJProperties()
+                .override("a", "high").override("b", "${c}").build();
+        EnvAwareProperties low = EnvAwareProperties.newBuilder().disableAllJProperties()
+                .override("a", "low").override("c", "from-low").build();
+        high.startAccessProfiling(1);
+        EnvAwareProperties merged = high.merge(low);
+        assertEquals("high", merged.getProperty("a"));
+        assertEquals("from-low", merged.getProperty("c"));
+        // b was left unresolved in high, and resolves against low in the merge
+        assertEquals("from-low", merged.getProperty("b"));
+        assertEquals(0, high.accessProfile().getTotalReads());
+        assertEquals(merged, merged.merge(merged));
+    }
+}
@@ -0,0 +1,183 @@
+package net.wushilin.envaware.properties.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.PropertySource;
+import net.wushilin.props.PropertySources;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PropertySourceTest {
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private final CountDownLatch bothArrived = new CountDownLatch(2);
+    private final AtomicInteger hits = new AtomicInteger();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.createContext("/a", exchange -> {
+            awaitOther();
+            respond(exchange, 200, "shared=from-a\na.only=${b.only}\n");
+        });
+        server.createContext("/b", exchange -> {
+            awaitOther();
+            respond(exchange, 200, "shared=from-b\nb.only=b\n");
+        });
+        server.createContext("/counted", exchange -> {
+            hits.incrementAndGet();
+            respond(exchange, 200, "counted=" + hits.get() + "\n");
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+            }
+            respond(exchange, 200, "slow=true\n");
+        });
+        server.createContext("/missing", exchange -> respond(exchange, 404, "not found"));
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private void awaitOther() {
+        bothArrived.countDown();
+        try {
+            bothArrived.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    @Test
+    void testHttpSourcesLoadInParallelAndKeepOrder() {
+        long start = System.nanoTime();
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .disableAllJProperties()
+                .thenAddSource(PropertySources.http(uri("/a")), PropertySources.http(uri("/b")))
+                .build();
+        // each handler waits for the other request, a serial load would take the full 5 seconds
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(4));
+        assertEquals("from-a", p.getProperty("shared"));
+        assertEquals("b", p.getProperty("a.only"));
+    }
+
+    @Test
+    void testSourceTimeout() {
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> EnvAwareProperties.newBuilder()
+                .sourceTimeout(200)
+                .thenAddSource(PropertySources.http(uri("/slow")))
+                .build());
+        assertTrue(ex.getMessage().contains("/slow"));
+    }
+
+    @Test
+    void testHttpErrorFailsBuild() {
+        assertThrows(IllegalArgumentException.class, () -> EnvAwareProperties.newBuilder()
+                .thenAddSource(PropertySources.http(uri("/missing")))
+                .build());
+    }
+
+    @Test
+    void testCachedSourceIsFetchedOnce() {
+        PropertySource cached = PropertySources.cached(PropertySources.http(uri("/counted")), 60000);
+        EnvAwareProperties p1 = EnvAwareProperties.newBuilder().thenAddSource(cached).build();
+        EnvAwareProperties p2 = EnvAwareProperties.newBuilder().thenAddSource(cached).build();
+        assertEquals("1", p1.getProperty("counted"));
+        assertEquals("1", p2.getProperty("counted"));
+        assertEquals(1, hits.get());
+    }
+
+    @Test
+    void testCachedTtlStartsWhenLoadCompletes() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        final List<CompletableFuture<Properties>> pending = new ArrayList<CompletableFuture<Properties>>();
+        PropertySource slow = new PropertySource() {
+            @Override
+            public String getName() {
+                return "slow";
+            }
+
+            @Override
+            public CompletableFuture<Properties> load(Executor executor) {
+                loads.incrementAndGet();
+                CompletableFuture<Properties> result = new CompletableFuture<Properties>();
+                pending.add(result);
+                return result;
+            }
+        };
+        PropertySource cached = PropertySources.cached(slow, 200);
+        CompletableFuture<Properties> first = cached.load(Runnable::run);
+        Thread.sleep(300);
+        pending.get(0).complete(new Properties());
+        assertSame(first, cached.load(Runnable::run));
+        assertEquals(1, loads.get());
+        Thread.sleep(300);
+        cached.load(Runnable::run);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    void testBuiltInTargetsAreSources() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .thenAddSource(PropertySources.file(new java.io.File("testdata/test3.properties")))
+                .thenAddSource(PropertySources.classpath("/testdata/test1.properties"))
+                .build();
+        assertEquals("test1.v1.override.test3", p.getProperty("test1.k1"));
+        assertEquals(6, p.size());
+    }
+
+    @Test
+    void testStartupOptimizedLoadsOnCallingThread() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .startupOptimized()
+                .thenAddPropertiesFile(new java.io.File("testdata/test3.properties"))
+                .thenAddPropertiesFromClasspath("/testdata/test1.properties")
+                .thenAddSource(PropertySources.http(uri("/counted")))
+                .build();
+        assertEquals("test1.v1.override.test3", p.getProperty("test1.k1"));
+        assertEquals("1", p.getProperty("counted"));
+        assertThrows(IllegalArgumentException.class, () -> EnvAwareProperties.newBuilder()
+                .startupOptimized()
+                .thenAddPropertiesFile(new java.io.File("testdata/no-such.properties"))
+                .build());
+    }
+}
@@ -0,0 +1,96 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.Provenance;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringReader;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProvenanceTest {
+
+    @Test
+    void testExplainFileSourceAndChain() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .enableProvenance()
+                .override("k9", "${k3}")
+                .thenAddPropertiesFilePath("testdata/resolve.properties")
+                .build();
+
+        Provenance.Explanation k1 = p.explain("k1");
+        assertEquals("testdata/resolve.properties".replace('/', java.io.File.separatorChar), k1.getSource());
+        assertEquals(1, k1.getLine());
+        assertTrue(k1.getChain().isEmpty());
+
+        Provenance.Explanation k3 = p.explain("k3");
+        assertEquals(4, k3.getLine());
+        assertEquals("k2", k3.getChain().get(0).getKey());
+        assertEquals("k1", k3.getChain().get(1).getKey());
+        assertEquals("k2value1", k3.getChain().get(2).getKey());
+
+        Provenance.Explanation k9 = p.explain("k9");
+        assertEquals("overrides", k9.getSource());
+        assertEquals(Provenance.NO_LINE, k9.getLine());
+        assertEquals("k3", k9.getChain().get(0).getKey());
+    }
+
+    @Test
+    void testExplainSharedLayer() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .enableProvenance()
+                .override("home", "${user.home}")
+                .build();
+        Provenance.Explanation home = p.explain("home");
+        assertEquals("system properties", home.getChain().get(0).getSource());
+        assertNull(p.explain("user.home"));
+    }
+
+    @Test
+    void testProvenanceOffByDefault() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().override("k", "v").build();
+        assertNull(p.explain("k"));
+        assertNull(new EnvAwareProperties(new Properties()).explain("k"));
+    }
+
+    @Test
+    void testLineNumbersFollowPropertiesFormat() throws Exception {
+        String content = "# comment\n"
+                + "\n"
+                + "a=1\n"
+                + "b = 2 \\\n"
+                + "   continued\n"
+                + "  c:3\r\n"
+                + "d\\u0041 4\n"
+                + "a=again\n";
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().disableAllJProperties()
+                .thenAddReader(new StringReader(content)).build();
+        assertEquals("2 continued", p.getProperty("b"));
+        java.io.File tmp = java.io.File.createTempFile("provenance", ".properties");
+        tmp.deleteOnExit();
+        java.nio.file.Files.write(tmp.toPath(), content.getBytes("ISO-8859-1"));
+        EnvAwareProperties f = EnvAwareProperties.newBuilder().enableProvenance().thenAddPropertiesFile(tmp).build();
+        assertEquals(8, f.explain("a").getLine());
+        assertEquals(4, f.explain("b").getLine());
+        assertEquals(6, f.explain("c").getLine());
+        assertEquals(7, f.explain("dA").getLine());
+    }
+
+    @Test
+    void testLineNumbersOfStreams() {
+        // streams can't be read twice, line numbers are collected while loading
+        String content = "a=1\r\n\\\r\n# x\r\n!y\r\nb=2 \\\r\n 3\r\n\r\nc=${a}${b}\n";
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment()
+                .disableSysProperties().enableProvenance()
+                .thenAddReader(new StringReader(content)).build();
+        assertEquals("1", p.getProperty("a"));
+        assertEquals("2 3", p.getProperty("b"));
+        assertEquals("12 3", p.getProperty("c"));
+        assertEquals(1, p.explain("a").getLine());
+        assertEquals(5, p.explain("b").getLine());
+        assertEquals(8, p.explain("c").getLine());
+        assertEquals("Reader", p.explain("c").getSource());
+        assertNull(p.explain("missing"));
+    }
+}
@@ -0,0 +1,157 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RenderTest {
+    private static EnvAwareProperties props() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .disableAllJProperties().disableEnvironment().disableSysProperties()
+                .override("host", "example.com")
+                .override("port", "8080")
+                .override("name", "port")
+                .override("url", "http://${host}:${port}")
+                .build();
+        return p;
+    }
+
+    /**
+     * Returns at most chunk chars per read, so placeholders are split across reads
+     */
+    private static class ChunkedReader extends FilterReader {
+        private final int chunk;
+
+        ChunkedReader(Reader in, int chunk) {
+            super(in);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return super.read(cbuf, off, Math.min(len, chunk));
+        }
+    }
+
+    private static String render(EnvAwareProperties p, String template, int chunk) throws IOException {
+        StringWriter out = new StringWriter();
+        p.render(new ChunkedReader(new StringReader(template), chunk), out);
+        return out.toString();
+    }
+
+    @Test
+    void testRender() throws IOException {
+        EnvAwareProperties p = props();
+        String template = "server { listen ${port}; server_name ${host}; }\n"
+                + "proxy ${url}/${${name}} ${missing} ${missing:-none} $ $$ {x} }\n"
+                + "price $5 ${unclosed";
+        String expected = "server { listen 8080; server_name example.com; }\n"
+                + "proxy http://example.com:8080/8080 ${missing} none $ $$ {x} }\n"
+                + "price $5 ${unclosed";
+        for (int chunk = 1; chunk <= template.length() + 1; chunk++) {
+            assertEquals(expected, render(p, template, chunk), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void testDollarAtBufferEnd() throws IOException {
+        EnvAwareProperties p = props();
+        assertEquals("$", render(p, "$", 1));
+        assertEquals("a$$8080$", render(p, "a$$${port}$", 1));
+        assertEquals("a$$8080$", render(p, "a$$${port}$", 2));
+    }
+
+    @Test
+    void testOverlayIsUsed() throws IOException {
+        final EnvAwareProperties p = props();
+        final StringWriter out = new StringWriter();
+        p.runWithOverlay(Collections.singletonMap("port", "9090"), () -> {
+            try {
+                p.render(new StringReader("${port} ${url}"), out);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertEquals("9090 http://example.com:8080", out.toString());
+    }
+
+    @Test
+    void testStrictFails() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .disableAllJProperties().disableEnvironment().disableSysProperties()
+                .strictResolution()
+                .build();
+        assertThrows(IllegalArgumentException.class, () -> p.render(new StringReader("${a:?a is required}"), new StringWriter()));
+    }
+
+    @Test
+    void testStrictFailsOnUnresolved() throws IOException {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                .disableAllJProperties().disableEnvironment().disableSysProperties()
+                .override("host", "example.com")
+                .override("bad", "${missing}")
+                .strictResolution()
+                .build();
+        assertEquals("example.com:80", render(p, "${host}:${port:-80}", 3));
+        StringBuilder tooLong = new StringBuilder("${");
+        for (int i = 0; i < 70000; i++) {
+            tooLong.append('x');
+        }
+        String[] bad = {"${missing}", "a ${bad} b", "${host", tooLong.toString() + "}"};
+        for (String next : bad) {
+            assertThrows(IllegalArgumentException.class, () -> render(p, next, 7), next.substring(0, Math.min(20, next.length())));
+        }
+        // the same templates are copied as is when not strict
+        EnvAwareProperties lenient = props();
+        assertEquals("${missing} ${host", render(lenient, "${missing} ${host", 7));
+        assertEquals(tooLong.toString() + "}", render(lenient, tooLong.toString() + "}", 4096));
+    }
+
+    @Test
+    void testRandomTemplates() throws IOException {
+        EnvAwareProperties p = props();
+        String[] parts = {"$", "{", "}", "${", "host", "port", "name", "x", ":-", " ", "\n"};
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            StringBuilder sb = new StringBuilder();
+            int len = random.nextInt(30);
+            for (int i = 0; i < len; i++) {
+                sb.append(parts[random.nextInt(parts.length)]);
+            }
+            String template = sb.toString();
+            String whole = render(p, template, Integer.MAX_VALUE);
+            for (int chunk = 1; chunk < 8; chunk++) {
+                assertEquals(whole, render(p, template, chunk), template);
+            }
+        }
+    }
+
+    @Test
+    void testRenderFiles() throws IOException {
+        EnvAwareProperties p = props();
+        Path template = Files.createTempFile("render", ".tmpl");
+        Path target = Files.createTempFile("render", ".conf");
+        try {
+            StringBuilder sb = new StringBuilder();
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 20000; i++) {
+                sb.append("line ").append(i).append(" ${url}\n");
+                expected.append("line ").append(i).append(" http://example.com:8080\n");
+            }
+            Files.write(template, sb.toString().getBytes(StandardCharsets.UTF_8));
+            p.render(template, target);
+            assertEquals(expected.toString(), new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(template);
+            Files.deleteIfExists(target);
+        }
+    }
+}
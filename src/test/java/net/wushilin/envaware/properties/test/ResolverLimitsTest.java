@@ -0,0 +1,92 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResolverLimitsTest {
+
+    private static EnvAwareProperties.Builder isolated() {
+        return EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment().disableSysProperties();
+    }
+
+    @Test
+    void testCycleKeepsRawValueAndReports() {
+        EnvAwareProperties p = isolated()
+                .override("key.1", "${key.2}")
+                .override("key.2", "${key.1}")
+                .override("other", "x${key.1}")
+                .override("fine", "${missing}/ok")
+                .build();
+        assertEquals("${key.2}", p.getProperty("key.1"));
+        assertEquals("x${key.1}", p.getProperty("other"));
+        assertEquals("${missing}/ok", p.getProperty("fine"));
+        assertEquals(3, p.getResolutionDiagnostics().size());
+        assertTrue(p.getResolutionDiagnostics().get(0).contains("Circular reference"));
+    }
+
+    @Test
+    void testStrictFailsFast() {
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> isolated()
+                .strictResolution()
+                .override("a", "${b}")
+                .override("b", "${a}")
+                .build());
+        assertTrue(ex.getMessage().contains("Circular reference"));
+    }
+
+    @Test
+    void testDepthLimit() {
+        EnvAwareProperties.Builder b = isolated().maxResolveDepth(10);
+        for (int i = 0; i < 20; i++) {
+            b.override("k" + i, "${k" + (i + 1) + "}");
+        }
+        b.override("k20", "end");
+        EnvAwareProperties p = b.build();
+        assertEquals("end", p.getProperty("k15"));
+        assertEquals("${k1}", p.getProperty("k0"));
+    }
+
+    @Test
+    void testExponentialExpansionIsBounded() {
+        EnvAwareProperties.Builder b = isolated().maxExpandedLength(1 << 16);
+        for (int i = 0; i < 40; i++) {
+            b.override("e" + i, "${e" + (i + 1) + "}${e" + (i + 1) + "}");
+        }
+        b.override("e40", "xx");
+        long start = System.nanoTime();
+        EnvAwareProperties p = b.build();
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        assertEquals(1 << 11, p.getProperty("e30").length());
+        assertEquals("${e1}${e1}", p.getProperty("e0"));
+        assertFalse(p.getResolutionDiagnostics().isEmpty());
+    }
+
+    @Test
+    void testTotalExpansionLimit() {
+        EnvAwareProperties p = isolated()
+                .maxTotalExpansions(2)
+                .override("a", "${v}${v}${v}")
+                .override("v", "1")
+                .build();
+        assertEquals("${v}${v}${v}", p.getProperty("a"));
+    }
+
+    @Test
+    void testNestedAndUnclosedPlaceholders() {
+        EnvAwareProperties p = isolated()
+                .override("k1", "k2")
+                .override("k2", "v2")
+                .override("nested", "${${k1}}")
+                .override("unclosed", "${k1")
+                .override("dollar", "$${k1}$")
+                .override("invalid", "${not valid}")
+                .build();
+        assertEquals("v2", p.getProperty("nested"));
+        assertEquals("${k1", p.getProperty("unclosed"));
+        assertEquals("$k2$", p.getProperty("dollar"));
+        assertEquals("${not valid}", p.getProperty("invalid"));
+        assertTrue(p.getResolutionDiagnostics().isEmpty());
+    }
+}
@@ -0,0 +1,129 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScopedOverlayTest {
+
+    private static EnvAwareProperties base() {
+        return EnvAwareProperties.newBuilder()
+                .disableAllJProperties()
+                .override("tenant", "default")
+                .override("region", "eu")
+                .override("dev.url", "http://dev")
+                .override("prod.url", "http://prod")
+                .build();
+    }
+
+    @Test
+    void testOverlayIsVisibleOnlyInsideScope() throws Exception {
+        EnvAwareProperties p = base();
+        Map<String, String> overlay = new HashMap<String, String>();
+        overlay.put("tenant", "acme");
+        overlay.put("label", "${tenant}-${region}");
+        String inside = p.callWithOverlay(overlay, () -> p.getProperty("tenant") + "/" + p.getProperty("label"));
+        assertEquals("acme/acme-eu", inside);
+        assertEquals("default", p.getProperty("tenant"));
+        assertNull(p.getProperty("label"));
+    }
+
+    @Test
+    void testNestedOverlaysAndResolve() {
+        EnvAwareProperties p = base();
+        p.runWithOverlay(Collections.singletonMap("env", "dev"), () -> {
+            assertEquals("http://dev", p.getPropertyResolve("${env}.url"));
+            p.runWithOverlay(Collections.singletonMap("env", "prod"), () ->
+                    assertEquals("http://prod", p.getPropertyResolve("${env}.url")));
+            assertEquals("http://dev", p.getPropertyResolve("${env}.url"));
+        });
+    }
+
+    @Test
+    void testOverlayIsPerInstance() {
+        EnvAwareProperties p = base();
+        EnvAwareProperties other = base();
+        p.runWithOverlay(Collections.singletonMap("tenant", "acme"), () ->
+                assertEquals("default", other.getProperty("tenant")));
+    }
+
+    @Test
+    void testOtherThreadsDoNotSeeOverlay() throws Exception {
+        EnvAwareProperties p = base();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            pool.submit(() -> { }).get();
+            Future<String> seen = p.callWithOverlay(Collections.singletonMap("tenant", "acme"),
+                    () -> pool.submit(() -> p.getProperty("tenant")));
+            assertEquals("default", seen.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testInheritedOverlayEndsWithScope() throws Exception {
+        EnvAwareProperties p = base();
+        CountDownLatch read = new CountDownLatch(1);
+        CountDownLatch scopeEnded = new CountDownLatch(1);
+        AtomicReference<String> during = new AtomicReference<String>();
+        AtomicReference<String> after = new AtomicReference<String>();
+        AtomicReference<Thread> child = new AtomicReference<Thread>();
+        p.runWithOverlay(Collections.singletonMap("tenant", "acme"), () -> {
+            Thread t = new Thread(() -> {
+                during.set(p.getProperty("tenant"));
+                read.countDown();
+                try {
+                    scopeEnded.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+                after.set(p.getProperty("tenant"));
+            });
+            child.set(t);
+            t.start();
+            try {
+                read.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+        });
+        scopeEnded.countDown();
+        child.get().join(TimeUnit.SECONDS.toMillis(10));
+        assertEquals("acme", during.get());
+        assertEquals("default", after.get());
+    }
+
+    @Test
+    void testPoolThreadsDoNotKeepEndedScopes() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            WeakReference<EnvAwareProperties> ref = startPoolInScope(pool);
+            for (int i = 0; i < 50 && ref.get() != null; i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertNull(ref.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static WeakReference<EnvAwareProperties> startPoolInScope(ExecutorService pool) throws Exception {
+        EnvAwareProperties p = base();
+        // the pool thread is created here, inherits the scope, and is never used again
+        p.callWithOverlay(Collections.singletonMap("tenant", "acme"),
+                () -> pool.submit(() -> { }).get(10, TimeUnit.SECONDS));
+        return new WeakReference<EnvAwareProperties>(p);
+    }
+}
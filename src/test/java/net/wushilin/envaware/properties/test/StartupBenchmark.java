@@ -0,0 +1,38 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Measures time to the first getProperty of a freshly started process. Each run must be a new JVM or native
+ * executable, otherwise class loading is already paid for.
+ * Usage: StartupBenchmark [default|optimized] [properties file]
+ * Run with: gradle startupBenchmark, or gradle startupBenchmarkNative with GRAALVM_HOME set.
+ */
+public class StartupBenchmark {
+    public static void main(String[] args) {
+        long entered = System.nanoTime();
+        String mode = args.length > 0 ? args[0] : "default";
+        String file = args.length > 1 ? args[1] : "testdata/resolve.properties";
+        EnvAwareProperties.Builder builder = EnvAwareProperties.newBuilder().thenAddPropertiesFilePath(file);
+        if ("optimized".equals(mode)) {
+            builder.startupOptimized();
+        }
+        EnvAwareProperties p = builder.build();
+        String value = p.getProperty("k3");
+        long firstRead = System.nanoTime();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(mode).append(": main -> first getProperty ").append((firstRead - entered) / 1000).append("us");
+        Optional<Instant> started = ProcessHandle.current().info().startInstant();
+        if (started.isPresent()) {
+            sb.append(", process start -> first getProperty ")
+                    .append(Duration.between(started.get(), Instant.now()).toMillis()).append("ms");
+        }
+        sb.append(" (k3=").append(value).append(")");
+        System.out.println(sb);
+    }
+}
@@ -0,0 +1,202 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.PropertySources;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StructuredSourceTest {
+    private static final Executor DIRECT = Runnable::run;
+
+    private static Properties json(String text) {
+        return PropertySources.json("test", new StringReader(text)).load(DIRECT).join();
+    }
+
+    private static Properties yaml(String text) {
+        return PropertySources.yaml("test", new StringReader(text)).load(DIRECT).join();
+    }
+
+    @Test
+    void testJson() {
+        Properties p = json("{\"a\": {\"b\": [{\"c\": 1}, {\"c\": -2.5e3, \"d\": [true, false, null]}]},\n"
+                + " \"s\": \"x\\\"y\\\\z\\u0041\\n\", \"empty\": {}, \"none\": [], \"n\": null, \"k.dot\": \"v\"}");
+        assertEquals("1", p.getProperty("a.b[0].c"));
+        assertEquals("-2.5e3", p.getProperty("a.b[1].c"));
+        assertEquals("true", p.getProperty("a.b[1].d[0]"));
+        assertEquals("false", p.getProperty("a.b[1].d[1]"));
+        assertEquals("x\"y\\zA\n", p.getProperty("s"));
+        assertEquals("v", p.getProperty("k.dot"));
+        assertEquals(6, p.size());
+
+        Properties root = json("[1, [2, 3], {\"a\": \"b\"}]");
+        assertEquals("1", root.getProperty("[0]"));
+        assertEquals("3", root.getProperty("[1][1]"));
+        assertEquals("b", root.getProperty("[2].a"));
+    }
+
+    @Test
+    void testInvalidJson() {
+        String[] bad = {"", "1", "{", "{\"a\" 1}", "{\"a\": 1,}", "{\"a\": tru}", "{\"a\": 1} x", "[1 2]", "{\"a\": \"x}"};
+        for (String next : bad) {
+            Exception ex = assertThrows(Exception.class, () -> json(next), next);
+            assertTrue(ex.getCause() instanceof IOException, next);
+        }
+    }
+
+    @Test
+    void testJsonNumbers() {
+        Properties p = json("[0, -0, 12, -3.25, 1e5, 2E-3, 4.5e+6]");
+        assertEquals("0", p.getProperty("[0]"));
+        assertEquals("-0", p.getProperty("[1]"));
+        assertEquals("12", p.getProperty("[2]"));
+        assertEquals("-3.25", p.getProperty("[3]"));
+        assertEquals("1e5", p.getProperty("[4]"));
+        assertEquals("2E-3", p.getProperty("[5]"));
+        assertEquals("4.5e+6", p.getProperty("[6]"));
+        String[] bad = {"--1", "-", "1e", "1e+", "1.", ".5", "1.2.3", "01", "-01", "1e5e5", "1+2", "1-"};
+        for (String next : bad) {
+            Exception ex = assertThrows(Exception.class, () -> json("[" + next + "]"), next);
+            assertTrue(ex.getCause() instanceof IOException, next);
+        }
+    }
+
+    @Test
+    void testYaml() {
+        String doc = "---\n"
+                + "# comment\n"
+                + "server:\n"
+                + "  host: example.com   # trailing comment\n"
+                + "  port: 8080\n"
+                + "  paths: [/a, \"/b, c\", '/d']\n"
+                + "  tls: {enabled: true, version: 1.3}\n"
+                + "  empty:\n"
+                + "services:\n"
+                + "- name: users\n"
+                + "  url: http://users\n"
+                + "- name: orders\n"
+                + "  tags:\n"
+                + "    - a\n"
+                + "    - b\n"
+                + "-\n"
+                + "  name: third\n"
+                + "- plain item\n"
+                + "quoted: \"tab\\there\"\n"
+                + "single: 'it''s # not a comment'\n"
+                + "apostrophe: it's fine\n"
+                + "literal: |\n"
+                + "  line 1\n"
+                + "    indented\n"
+                + "\n"
+                + "  line 3\n"
+                + "folded: >-\n"
+                + "  one\n"
+                + "  two\n"
+                + "nothing: ~\n"
+                + "last: end\n";
+        Properties p = yaml(doc);
+        assertEquals("example.com", p.getProperty("server.host"));
+        assertEquals("8080", p.getProperty("server.port"));
+        assertEquals("/a", p.getProperty("server.paths[0]"));
+        assertEquals("/b, c", p.getProperty("server.paths[1]"));
+        assertEquals("/d", p.getProperty("server.paths[2]"));
+        assertEquals("true", p.getProperty("server.tls.enabled"));
+        assertEquals("1.3", p.getProperty("server.tls.version"));
+        assertEquals("users", p.getProperty("services[0].name"));
+        assertEquals("http://users", p.getProperty("services[0].url"));
+        assertEquals("orders", p.getProperty("services[1].name"));
+        assertEquals("a", p.getProperty("services[1].tags[0]"));
+        assertEquals("b", p.getProperty("services[1].tags[1]"));
+        assertEquals("third", p.getProperty("services[2].name"));
+        assertEquals("plain item", p.getProperty("services[3]"));
+        assertEquals("tab\there", p.getProperty("quoted"));
+        assertEquals("it's # not a comment", p.getProperty("single"));
+        assertEquals("it's fine", p.getProperty("apostrophe"));
+        assertEquals("line 1\n  indented\n\nline 3\n", p.getProperty("literal"));
+        assertEquals("one two", p.getProperty("folded"));
+        assertEquals("end", p.getProperty("last"));
+        assertNull(p.getProperty("nothing"));
+        assertNull(p.getProperty("server.empty"));
+        assertEquals(20, p.size());
+    }
+
+    @Test
+    void testYamlNullItems() {
+        Properties p = yaml("a:\n- 1\n- 2\n-\n- 4\n-\nb:\n  -\n  - x\n  -\n    - y\n");
+        assertEquals("1", p.getProperty("a[0]"));
+        assertEquals("2", p.getProperty("a[1]"));
+        assertEquals("4", p.getProperty("a[3]"));
+        assertEquals("x", p.getProperty("b[1]"));
+        assertEquals("y", p.getProperty("b[2][0]"));
+        assertEquals(5, p.size());
+    }
+
+    @Test
+    void testUnsupportedYaml() {
+        String[] bad = {"a: &x 1", "a: *x", "a: 1\n---\nb: 2", "- a", "a:\n  b: 1\n c: 2", "a: [1, [2]]", "a:\n\tb: 1"};
+        for (String next : bad) {
+            Exception ex = assertThrows(Exception.class, () -> yaml(next), next);
+            assertTrue(ex.getCause() instanceof IOException, next);
+        }
+    }
+
+    @Test
+    void testBuilderWithPlaceholders() throws IOException {
+        File json = File.createTempFile("cfg", ".json");
+        File yaml = File.createTempFile("cfg", ".yaml");
+        try {
+            Files.write(json.toPath(), "{\"db\": {\"hosts\": [\"db1\", \"db2\"], \"url\": \"jdbc://${db.hosts[0]}/${app.name}\"}}"
+                    .getBytes(StandardCharsets.UTF_8));
+            Files.write(yaml.toPath(), "app:\n  name: shop\ndb:\n  hosts: [other]\n".getBytes(StandardCharsets.UTF_8));
+            EnvAwareProperties p = EnvAwareProperties.newBuilder()
+                    .disableAllJProperties()
+                    .thenAddJson(json)
+                    .thenAddYaml(yaml)
+                    .build();
+            assertEquals("jdbc://db1/shop", p.getProperty("db.url"));
+        } finally {
+            json.delete();
+            yaml.delete();
+        }
+    }
+
+    @Test
+    void testLargeJsonStreams() throws IOException {
+        // a generated document, read through a reader that never holds it whole
+        final int items = 200000;
+        Reader generated = new Reader() {
+            private int next = -1;
+            private String chunk = "{\"items\": [";
+            private int pos;
+
+            @Override
+            public int read(char[] cbuf, int off, int len) {
+                if (pos == chunk.length()) {
+                    next++;
+                    if (next > items) {
+                        return -1;
+                    }
+                    chunk = next == items ? "]}" : (next == 0 ? "" : ",") + "{\"id\": " + next + ", \"name\": \"n" + next + "\"}";
+                    pos = 0;
+                }
+                int n = Math.min(len, chunk.length() - pos);
+                chunk.getChars(pos, pos + n, cbuf, off);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Properties p = PropertySources.json("generated", generated).load(DIRECT).join();
+        assertEquals(items * 2, p.size());
+        assertEquals("n199999", p.getProperty("items[199999].name"));
+    }
+}
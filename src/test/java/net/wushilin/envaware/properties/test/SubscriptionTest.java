@@ -0,0 +1,219 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.ChangeListener;
+import net.wushilin.props.EnvAwareProperties;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubscriptionTest {
+
+    /**
+     * Runs tasks only when asked, so batching is deterministic
+     */
+    private static class ManualExecutor implements Executor {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        int runAll() {
+            int count = 0;
+            Runnable next;
+            while ((next = tasks.poll()) != null) {
+                next.run();
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private static class Recorder implements ChangeListener {
+        final List<Set<String>> batches = new ArrayList<Set<String>>();
+
+        @Override
+        public void onChange(EnvAwareProperties source, Set<String> changedKeys) {
+            batches.add(new TreeSet<String>(changedKeys));
+        }
+    }
+
+    @Test
+    void testExactAndPrefixSubscriptions() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().override("db.url", "u1").build();
+        ManualExecutor executor = new ManualExecutor();
+        p.setChangeExecutor(executor);
+        Recorder url = new Recorder();
+        Recorder db = new Recorder();
+        Recorder all = new Recorder();
+        Recorder cache = new Recorder();
+        p.subscribe("db.url", url);
+        p.subscribe("db.", db);
+        p.subscribe("", all);
+        p.subscribe("cache.", cache);
+
+        p.setProperty("db.url", "u2");
+        p.setProperty("db.pool.size", "10");
+        p.setProperty("db.url", "u3");
+        p.setProperty("other", "x");
+        p.setProperty("other", "x");
+        assertEquals(3, executor.runAll());
+
+        assertEquals(Collections.singletonList(new TreeSet<String>(Arrays.asList("db.url"))), url.batches);
+        assertEquals(Collections.singletonList(new TreeSet<String>(Arrays.asList("db.pool.size", "db.url"))), db.batches);
+        assertEquals(Collections.singletonList(new TreeSet<String>(Arrays.asList("db.pool.size", "db.url", "other"))), all.batches);
+        assertTrue(cache.batches.isEmpty());
+    }
+
+    @Test
+    void testPutAllRemoveClearAndClose() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().override("a.1", "x").build();
+        ManualExecutor executor = new ManualExecutor();
+        p.setChangeExecutor(executor);
+        Recorder a = new Recorder();
+        ChangeListener.Subscription sub = p.subscribe("a.", a);
+
+        Map<String, String> batch = new HashMap<String, String>();
+        batch.put("a.1", "x");
+        batch.put("a.2", "y");
+        p.putAll(batch);
+        executor.runAll();
+        p.remove("a.1");
+        p.remove("a.missing");
+        executor.runAll();
+        sub.close();
+        p.clear();
+        executor.runAll();
+
+        assertEquals(2, a.batches.size());
+        assertEquals(new TreeSet<String>(Arrays.asList("a.2")), a.batches.get(0));
+        assertEquals(new TreeSet<String>(Arrays.asList("a.1")), a.batches.get(1));
+    }
+
+    @Test
+    void testDefaultExecutorDelivers() throws Exception {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().build();
+        final java.util.concurrent.CountDownLatch latch = new java.util.concurrent.CountDownLatch(1);
+        p.subscribe("k", (source, keys) -> latch.countDown());
+        p.setProperty("k", "v");
+        assertTrue(latch.await(5, java.util.concurrent.TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testEveryWriteNotifies() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().override("a.1", "x").override("a.2", "y").build();
+        ManualExecutor executor = new ManualExecutor();
+        p.setChangeExecutor(executor);
+        Recorder a = new Recorder();
+        p.subscribe("a.", a);
+
+        p.putIfAbsent("a.3", "z");
+        p.putIfAbsent("a.3", "ignored");
+        p.replace("a.1", "x2");
+        p.replace("a.2", "wrong", "ignored");
+        p.compute("a.4", (k, v) -> "c");
+        p.merge("a.4", "d", (o, n) -> o + "" + n);
+        p.computeIfPresent("a.4", (k, v) -> null);
+        executor.runAll();
+        assertEquals(new TreeSet<String>(Arrays.asList("a.1", "a.3", "a.4")), a.batches.get(0));
+        assertNull(p.getProperty("a.4"));
+
+        p.keySet().remove("a.1");
+        p.entrySet().removeIf(e -> "a.2".equals(e.getKey()));
+        for (Map.Entry<Object, Object> next : p.entrySet()) {
+            next.setValue("set");
+        }
+        executor.runAll();
+        assertEquals(new TreeSet<String>(Arrays.asList("a.1", "a.2", "a.3")), a.batches.get(1));
+        assertEquals("set", p.getProperty("a.3"));
+
+        p.replaceAll((k, v) -> "all");
+        p.values().remove("all");
+        executor.runAll();
+        assertEquals(new TreeSet<String>(Arrays.asList("a.3")), a.batches.get(2));
+        assertTrue(p.isEmpty());
+    }
+
+    @Test
+    void testRejectedDispatchRecovers() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().build();
+        final ManualExecutor executor = new ManualExecutor();
+        final boolean[] reject = {true};
+        p.setChangeExecutor(command -> {
+            if (reject[0]) {
+                throw new java.util.concurrent.RejectedExecutionException("full");
+            }
+            executor.execute(command);
+        });
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        p.setChangeErrorHandler((thread, e) -> errors.add(e));
+        Recorder k = new Recorder();
+        p.subscribe("k.", k);
+        p.setProperty("k.1", "v");
+        assertEquals(1, errors.size());
+        reject[0] = false;
+        p.setProperty("k.2", "v");
+        executor.runAll();
+        assertEquals(Collections.singletonList(new TreeSet<String>(Arrays.asList("k.1", "k.2"))), k.batches);
+
+        p.subscribe("k.", (source, keys) -> {
+            throw new IllegalStateException("listener failed");
+        });
+        p.setProperty("k.3", "v");
+        executor.runAll();
+        assertEquals("listener failed", errors.get(1).getMessage());
+    }
+
+    @Test
+    void testListenerErrorDoesNotStopSubscription() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().build();
+        ManualExecutor executor = new ManualExecutor();
+        p.setChangeExecutor(executor);
+        final List<Set<String>> batches = new ArrayList<Set<String>>();
+        p.subscribe("k.", (source, keys) -> {
+            batches.add(new TreeSet<String>(keys));
+            if (batches.size() == 1) {
+                throw new AssertionError("listener failed");
+            }
+        });
+        p.setProperty("k.1", "v");
+        assertThrows(AssertionError.class, executor::runAll);
+        p.setProperty("k.2", "v");
+        executor.runAll();
+        assertEquals(Arrays.asList(Collections.singleton("k.1"), Collections.singleton("k.2")), batches);
+        assertThrows(NullPointerException.class, () -> p.setChangeExecutor(null));
+        p.setProperty("k.3", "v");
+        executor.runAll();
+        assertEquals(3, batches.size());
+    }
+
+    @Test
+    void testCloneDoesNotShareSubscriptions() {
+        EnvAwareProperties p = EnvAwareProperties.newBuilder().override("x.a", "1").build();
+        ManualExecutor executor = new ManualExecutor();
+        p.setChangeExecutor(executor);
+        Recorder x = new Recorder();
+        p.subscribe("x.", x);
+        assertEquals(Collections.singleton("x.a"), p.query("x.*").keySet());
+        EnvAwareProperties copy = (EnvAwareProperties) p.clone();
+        copy.setProperty("x.b", "2");
+        copy.remove("x.a");
+        executor.runAll();
+        assertTrue(x.batches.isEmpty());
+        assertEquals(Collections.singleton("x.a"), p.query("x.*").keySet());
+        assertEquals(Collections.singleton("x.b"), copy.query("x.*").keySet());
+        Recorder copied = new Recorder();
+        copy.setChangeExecutor(executor);
+        copy.subscribe("x.", copied);
+        copy.setProperty("x.c", "3");
+        p.setProperty("x.d", "4");
+        executor.runAll();
+        assertEquals(Collections.singletonList(Collections.singleton("x.c")), copied.batches);
+        assertEquals(Collections.singletonList(Collections.singleton("x.d")), x.batches);
+    }
+}
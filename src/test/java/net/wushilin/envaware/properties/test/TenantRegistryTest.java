@@ -0,0 +1,145 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.AccessProfile;
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.TenantRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TenantRegistryTest {
+    private static EnvAwareProperties base() {
+        return EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment().disableSysProperties()
+                .override("db.host", "shared-db")
+                .override("db.url", "jdbc://${db.host}/app")
+                .override("bucket", "s3://${tenant.id}-data")
+                .override("timeout", "30")
+                .build();
+    }
+
+    private static Map<String, String> overlay(String... pairs) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            result.put(pairs[i], pairs[i + 1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testTenantValuesMatchMerge() {
+        EnvAwareProperties base = base();
+        TenantRegistry registry = base.tenants(10, 1000);
+        Map<String, String> acme = overlay("tenant.id", "acme", "timeout", "60", "db.user", "${tenant.id}-user");
+        registry.register("acme", acme);
+
+        TenantRegistry.Tenant tenant = registry.tenant("acme");
+        Properties acmeProperties = new Properties();
+        acmeProperties.putAll(acme);
+        EnvAwareProperties merged = EnvAwareProperties.newBuilder().disableAllJProperties().disableEnvironment()
+                .disableSysProperties().thenAddProperties(acmeProperties, base).build();
+        for (String key : merged.stringPropertyNames()) {
+            assertEquals(merged.getProperty(key), tenant.getProperty(key), key);
+        }
+        assertEquals("s3://acme-data", tenant.getProperty("bucket"));
+        assertEquals("acme-user", tenant.getProperty("db.user"));
+        assertEquals("jdbc://shared-db/app", tenant.getProperty("db.url"));
+        assertNull(tenant.getProperty("missing"));
+        assertEquals("x", tenant.getProperty("missing", "x"));
+        assertEquals(merged, tenant.toProperties());
+
+        // the base is untouched
+        assertEquals("30", base.getProperty("timeout"));
+        assertEquals("s3://${tenant.id}-data", base.getProperty("bucket"));
+    }
+
+    @Test
+    public void testLazyAndBoundedCache() {
+        TenantRegistry registry = base().tenants(3, 1000);
+        for (int i = 0; i < 10; i++) {
+            registry.register("t" + i, overlay("tenant.id", "t" + i));
+        }
+        assertEquals(0, registry.getCachedTenants());
+        TenantRegistry.Tenant t0 = registry.tenant("t0");
+        assertEquals(0, registry.getCachedTenants());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("s3://t" + i + "-data", registry.tenant("t" + i).getProperty("bucket"));
+        }
+        assertEquals(3, registry.getCachedTenants());
+        // each tenant caches tenant.id and bucket, plus 1
+        assertEquals(9, registry.getCachedEntries());
+        assertEquals("s3://t0-data", t0.getProperty("bucket"));
+
+        TenantRegistry byWeight = base().tenants(100, 7);
+        for (int i = 0; i < 10; i++) {
+            byWeight.register("t" + i, overlay("tenant.id", "t" + i));
+            byWeight.tenant("t" + i).getProperty("timeout");
+        }
+        assertEquals(2, byWeight.getCachedTenants());
+        assertEquals(6, byWeight.getCachedEntries());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        TenantRegistry registry = base().tenants(16, 100_000);
+        for (int i = 0; i < 17; i++) {
+            registry.register("t" + i, overlay("tenant.id", "t" + i));
+        }
+        for (int i = 0; i < 16; i++) {
+            registry.tenant("t" + i).getProperty("bucket");
+        }
+        // t0 is read again, so it survives the eviction caused by t16
+        registry.tenant("t0").getProperty("bucket");
+        registry.tenant("t16").getProperty("bucket");
+        assertEquals(14, registry.getCachedTenants());
+        assertEquals(14 * 3, registry.getCachedEntries());
+        registry.tenant("t0").getProperty("bucket");
+        assertEquals(14, registry.getCachedTenants());
+    }
+
+    @Test
+    public void testTenantReadsAreProfiled() {
+        EnvAwareProperties base = base();
+        TenantRegistry registry = base.tenants(10, 1000);
+        registry.register("acme", overlay("tenant.id", "acme", "timeout", "60"));
+        base.startAccessProfiling(1);
+        TenantRegistry.Tenant acme = registry.tenant("acme");
+        acme.getProperty("db.url");
+        acme.getProperty("bucket");
+        acme.getProperty("timeout");
+        acme.getProperty("missing");
+        AccessProfile profile = base.accessProfile();
+        assertEquals(1, profile.getReads("db.url"));
+        assertEquals(1, profile.getReads("bucket"));
+        assertEquals(0, profile.getReads("timeout"));
+        assertEquals(0, profile.getReads("missing"));
+    }
+
+    @Test
+    public void testChanges() {
+        EnvAwareProperties base = base();
+        TenantRegistry registry = base.tenants(10, 1000);
+        registry.register("acme", overlay("tenant.id", "acme"));
+        TenantRegistry.Tenant acme = registry.tenant("acme");
+        assertEquals("s3://acme-data", acme.getProperty("bucket"));
+
+        registry.register("acme", overlay("tenant.id", "acme2"));
+        assertEquals("s3://acme2-data", acme.getProperty("bucket"));
+
+        base.setProperty("bucket", "gs://${tenant.id}");
+        assertEquals("gs://acme2", acme.getProperty("bucket"));
+        base.setProperty("timeout", "90");
+        assertEquals("90", acme.getProperty("timeout"));
+
+        assertEquals(Collections.singleton("acme"), registry.tenants());
+        assertTrue(registry.remove("acme"));
+        assertFalse(registry.remove("acme"));
+        assertThrows(IllegalArgumentException.class, () -> acme.getProperty("timeout"));
+        assertThrows(IllegalArgumentException.class, () -> registry.tenant("acme"));
+        assertThrows(IllegalArgumentException.class, () -> base.tenants(0, 10));
+    }
+}
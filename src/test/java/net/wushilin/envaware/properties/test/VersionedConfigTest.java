@@ -0,0 +1,159 @@
+package net.wushilin.envaware.properties.test;
+
+import net.wushilin.props.EnvAwareProperties;
+import net.wushilin.props.VersionedConfig;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VersionedConfigTest {
+    private static EnvAwareProperties props() {
+        return EnvAwareProperties.newBuilder()
+                .disableAllJProperties().disableEnvironment().disableSysProperties()
+                .override("host", "a.example.com")
+                .override("port", "80")
+                .build();
+    }
+
+    @Test
+    void testBatchCommitsNewVersion() {
+        EnvAwareProperties p = props();
+        VersionedConfig config = p.versioned(5);
+        VersionedConfig.Version v1 = config.current();
+        assertEquals(1, v1.getVersion());
+        VersionedConfig.Version v2 = config.batch()
+                .set("port", "8080")
+                .set("url", "http://${host}:${port}")
+                .remove("host")
+                .commit();
+        assertEquals(2, v2.getVersion());
+        assertSame(v2, config.current());
+        // the batch sees its own changes, host is gone
+        assertEquals("http://${host}:8080", v2.getProperty("url"));
+        assertNull(v2.getProperty("host"));
+        assertEquals("a.example.com", v1.getProperty("host"));
+        assertEquals("80", v1.getProperty("port"));
+        assertNull(v1.getProperty("url"));
+        // applied to the properties too
+        assertEquals("8080", p.getProperty("port"));
+        assertEquals("http://${host}:8080", p.getProperty("url"));
+        assertNull(p.getProperty("host"));
+        assertEquals(v2.keys(), p.stringPropertyNames());
+    }
+
+    @Test
+    void testPinnedVersionIsStable() {
+        VersionedConfig config = props().versioned(2);
+        try (VersionedConfig.Pin pin = config.pin()) {
+            assertEquals(1, pin.getVersion().getPinCount());
+            for (int i = 0; i < 10; i++) {
+                config.batch().set("port", Integer.toString(i)).commit();
+            }
+            assertEquals("80", pin.getProperty("port"));
+            assertEquals(1, pin.getVersion().getVersion());
+            assertEquals(2, config.history().size());
+        }
+        assertEquals(11, config.current().getVersion());
+        assertEquals("9", config.current().getProperty("port"));
+    }
+
+    @Test
+    void testRollback() {
+        EnvAwareProperties p = props();
+        VersionedConfig config = p.versioned(3);
+        config.batch().set("port", "1").set("extra", "x").commit();
+        config.batch().set("port", "2").remove("host").commit();
+        VersionedConfig.Version back = config.rollback();
+        assertEquals(4, back.getVersion());
+        assertEquals("1", back.getProperty("port"));
+        assertEquals("a.example.com", back.getProperty("host"));
+        assertEquals("1", p.getProperty("port"));
+        VersionedConfig.Version first = config.rollback(2);
+        assertEquals("1", first.getProperty("port"));
+        assertThrows(IllegalArgumentException.class, () -> config.rollback(1));
+        List<VersionedConfig.Version> history = config.history();
+        assertEquals(3, history.size());
+        assertEquals(5, history.get(2).getVersion());
+    }
+
+    @Test
+    void testManyCommitsCompact() {
+        EnvAwareProperties p = props();
+        VersionedConfig config = p.versioned(1);
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("host", "a.example.com");
+        expected.put("port", "80");
+        for (int i = 0; i < 2000; i++) {
+            String key = "k" + (i % 300);
+            if (i % 7 == 0) {
+                config.batch().remove(key).commit();
+                expected.remove(key);
+            } else {
+                config.batch().set(key, Integer.toString(i)).commit();
+                expected.put(key, Integer.toString(i));
+            }
+        }
+        VersionedConfig.Version v = config.current();
+        assertEquals(expected.keySet(), v.keys());
+        for (Map.Entry<String, String> e : expected.entrySet()) {
+            assertEquals(e.getValue(), v.getProperty(e.getKey()));
+            assertEquals(e.getValue(), p.getProperty(e.getKey()));
+        }
+        assertEquals(Collections.singletonList(v), config.history());
+    }
+
+    @Test
+    void testRollbackAcrossManyKeys() {
+        EnvAwareProperties p = props();
+        VersionedConfig config = p.versioned(3);
+        VersionedConfig.Batch batch = config.batch();
+        for (int i = 0; i < 5000; i++) {
+            batch.set("key." + i, Integer.toString(i));
+        }
+        // "Aa" and "BB" have the same hash code
+        VersionedConfig.Version big = batch.set("Aa", "1").set("BB", "2").commit();
+        config.batch().set("key.17", "x").remove("key.18").remove("Aa").set("new", "y").commit();
+        assertEquals("2", config.current().getProperty("BB"));
+        assertNull(config.current().getProperty("Aa"));
+        VersionedConfig.Version back = config.rollback(big.getVersion());
+        assertEquals(big.keys(), back.keys());
+        assertEquals("17", back.getProperty("key.17"));
+        assertEquals("18", back.getProperty("key.18"));
+        assertEquals("1", back.getProperty("Aa"));
+        assertNull(back.getProperty("new"));
+        assertNull(p.getProperty("new"));
+        assertEquals("1", p.getProperty("Aa"));
+    }
+
+    @Test
+    void testSubscribersSeeBatch() throws Exception {
+        EnvAwareProperties p = props();
+        final java.util.concurrent.CountDownLatch seen = new java.util.concurrent.CountDownLatch(1);
+        final java.util.Set<String> keys = java.util.concurrent.ConcurrentHashMap.newKeySet();
+        p.subscribe("", (source, changed) -> {
+            keys.addAll(changed);
+            if (keys.size() == 2) {
+                seen.countDown();
+            }
+        });
+        p.versioned(2).batch().set("port", "1").remove("host").commit();
+        assertTrue(seen.await(10, java.util.concurrent.TimeUnit.SECONDS));
+        assertEquals(new java.util.HashSet<String>(java.util.Arrays.asList("port", "host")), keys);
+    }
+
+    @Test
+    void testBatchIsOneNotification() {
+        EnvAwareProperties p = props();
+        final List<java.util.Set<String>> calls = new java.util.ArrayList<java.util.Set<String>>();
+        p.setChangeExecutor(Runnable::run);
+        p.subscribe("", (source, changed) -> calls.add(new java.util.TreeSet<String>(changed)));
+        p.versioned(2).batch().remove("host").set("port", "1").set("extra", "x").commit();
+        assertEquals(Collections.singletonList(new java.util.TreeSet<String>(java.util.Arrays.asList(
+                "extra", "host", "port"))), calls);
+    }
+}